@@ -0,0 +1,79 @@
+package gadgetinspector;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The taint label of call graph discovery: an argument of the analyzed method, counting {@code this} as argument 0,
+ * followed by the chain of fields read from it, such as {@code arg0.map.table}.
+ * <p>
+ * Paths are interned in a tree, each path holding the paths one field longer, so reading a field of a tainted value
+ * is a map lookup rather than building a string, and paths compare by identity. Chains are limited to a given number
+ * of fields: reading a field past the limit yields the same path, which then stands for any value reachable from it.
+ */
+public final class AccessPath {
+    private static final AccessPath[] ARGS = new AccessPath[256];
+    private static final ConcurrentHashMap<Integer, AccessPath> WIDE_ARGS = new ConcurrentHashMap<>();
+
+    static {
+        for (int i = 0; i < ARGS.length; i++) {
+            ARGS[i] = new AccessPath(i, null, null);
+        }
+    }
+
+    private final int argIndex;
+    private final String fieldPath;
+    private final int depth;
+    private final ConcurrentHashMap<String, AccessPath> fields = new ConcurrentHashMap<>();
+
+    private AccessPath(int argIndex, AccessPath parent, String field) {
+        this.argIndex = argIndex;
+        if (parent == null) {
+            this.fieldPath = null;
+            this.depth = 0;
+        } else {
+            this.fieldPath = parent.fieldPath == null ? field : parent.fieldPath + "." + field;
+            this.depth = parent.depth + 1;
+        }
+    }
+
+    /**
+     * @return The interned path of the argument itself
+     */
+    public static AccessPath ofArg(int argIndex) {
+        if (argIndex >= 0 && argIndex < ARGS.length) {
+            return ARGS[argIndex];
+        }
+        return WIDE_ARGS.computeIfAbsent(argIndex, i -> new AccessPath(i, null, null));
+    }
+
+    /**
+     * @param maxDepth Number of fields after which the chain is cut off
+     * @return The interned path of the given field of this path's value, or this path if it is at the limit already
+     */
+    public AccessPath getField(String name, int maxDepth) {
+        if (depth >= maxDepth) {
+            return this;
+        }
+        AccessPath field = fields.get(name);
+        if (field == null) {
+            field = fields.computeIfAbsent(name, n -> new AccessPath(argIndex, this, n));
+        }
+        return field;
+    }
+
+    public int getArgIndex() {
+        return argIndex;
+    }
+
+    /**
+     * @return The fields read from the argument, separated by dots, or null for the argument itself
+     */
+    public String getFieldPath() {
+        return fieldPath;
+    }
+
+    @Override
+    public String toString() {
+        return fieldPath == null ? "arg" + argIndex : "arg" + argIndex + "." + fieldPath;
+    }
+}
@@ -5,45 +5,161 @@ import gadgetinspector.config.JavaDeserializationConfig;
 import gadgetinspector.data.*;
 import org.objectweb.asm.*;
 import org.objectweb.asm.commons.JSRInlinerAdapter;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.file.Paths;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class CallGraphDiscovery {
     private static final Logger LOGGER = LoggerFactory.getLogger(CallGraphDiscovery.class);
+    public static final int DEFAULT_ACCESS_PATH_DEPTH = 5;
 
-    private final Set<GraphCall> discoveredCalls = new HashSet<>();
+    private final int accessPathDepth;
+    private final Set<GraphCall> discoveredCalls = ConcurrentHashMap.newKeySet();
+    private MethodBudget methodBudget = new MethodBudget();
+
+    public CallGraphDiscovery() {
+        this(DEFAULT_ACCESS_PATH_DEPTH);
+    }
+
+    /**
+     * @param accessPathDepth Number of fields after which the {@link AccessPath} of a tainted value is cut off
+     */
+    public CallGraphDiscovery(int accessPathDepth) {
+        if (accessPathDepth < 0) {
+            throw new IllegalArgumentException("Invalid access path depth: " + accessPathDepth);
+        }
+        this.accessPathDepth = accessPathDepth;
+    }
+
+    /**
+     * Sets the budget of each method's analysis, and where the methods cut short are recorded.
+     */
+    public void setMethodBudget(MethodBudget methodBudget) {
+        this.methodBudget = methodBudget;
+    }
+
+    /**
+     * Adds the call graph edges of a JDK snapshot, whose classes are then not analyzed again.
+     */
+    public void link(JdkSnapshot jdkSnapshot) throws IOException {
+        discoveredCalls.addAll(jdkSnapshot.loadCallGraph());
+    }
 
     public void discover(final ClassResourceEnumerator classResourceEnumerator, GIConfig config) throws IOException {
         // 加载之前几个阶段全量收集到的信息，包括方法、类、继承关系、方法入参和返回值之间的污点分析结果
         Map<MethodReference.Handle, MethodReference> methodMap = DataLoader.loadMethods();
         Map<ClassReference.Handle, ClassReference> classMap = DataLoader.loadClasses();
         InheritanceMap inheritanceMap = InheritanceMap.load();
-        Map<MethodReference.Handle, Set<Integer>> passthroughDataflow = PassthroughDiscovery.load();
+        PassthroughSummaries passthroughDataflow = PassthroughDiscovery.load();
 
         SerializableDecider serializableDecider = config.getSerializableDecider(methodMap, inheritanceMap);
 
         // 遍历所有的类
         for (ClassResourceEnumerator.ClassResource classResource : classResourceEnumerator.getAllClasses()) {
-            try (InputStream in = classResource.getInputStream()) {
-                ClassReader cr = new ClassReader(in);
-                try {
-                    // 继续使用访问者模式，用到了一个新的Visitor: ModelGeneratorVisitor
-                    cr.accept(new ModelGeneratorClassVisitor(classMap, inheritanceMap, passthroughDataflow, serializableDecider, Opcodes.ASM6),
-                            ClassReader.EXPAND_FRAMES);
-                } catch (Exception e) {
-                    LOGGER.error("Error analyzing: " + classResource.getName(), e);
+            ClassReader cr = classResource.getClassReader();
+            try {
+                // 继续使用访问者模式，用到了一个新的Visitor: ModelGeneratorVisitor
+                cr.accept(new ModelGeneratorClassVisitor(classMap, inheritanceMap, passthroughDataflow, serializableDecider, Opcodes.ASM6),
+                        ClassReader.SKIP_DEBUG | ClassReader.EXPAND_FRAMES);
+            } catch (Exception e) {
+                LOGGER.error("Error analyzing: " + classResource.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Discovers the calls of one JSR-inlined method body with expanded frames. Passthrough discovery passes on the
+     * bodies it decoded with its {@link MethodBodyCache}, so that they are not decoded again for the call graph. The
+     * passthrough dataflow must already be complete for every method the body calls. A method over its {@link MethodBudget}, in this or an earlier analysis, gets the
+     * conservative call graph of {@link #addAllCalls}. Safe for concurrent use.
+     *
+     * @param checkFrames Whether to check the taint tracking against the body's frames, which is only needed for a body
+     *                    that has not already been analyzed without error
+     */
+    public void discover(MethodReference.Handle method, MethodNode methodNode,
+                         Map<ClassReference.Handle, ClassReference> classMap, InheritanceMap inheritanceMap,
+                         PassthroughSummaries passthroughDataflow, SerializableDecider serializableDecider,
+                         boolean checkFrames) {
+        List<GraphCall> calls = new ArrayList<>();
+        if (methodBudget.isTruncated(method)) {
+            addAllCalls(method, methodNode, calls);
+            discoveredCalls.addAll(calls);
+            return;
+        }
+        try {
+            methodNode.accept(new ModelGeneratorMethodVisitor(classMap, inheritanceMap, passthroughDataflow,
+                    serializableDecider, Opcodes.ASM6, null, method.getClassReference().getName(), methodNode.access,
+                    methodNode.name, methodNode.desc, methodNode.signature,
+                    methodNode.exceptions.toArray(new String[0]), checkFrames, calls));
+        } catch (MethodBudget.ExceededException e) {
+            methodBudget.truncated("call graph", method, e);
+            calls.clear();
+            addAllCalls(method, methodNode, calls);
+        } catch (Exception e) {
+            LOGGER.error("Error analyzing: " + method.getClassReference().getName() + "." + method.getName()
+                    + method.getDesc(), e);
+        }
+        discoveredCalls.addAll(calls);
+    }
+
+    /**
+     * Adds the conservative call graph of a method whose analysis was cut short: each of its object arguments may flow
+     * into each object argument of every method it calls. Primitive arguments cannot carry a gadget, so they are left
+     * out on both sides.
+     */
+    private static void addAllCalls(MethodReference.Handle method, MethodNode methodNode, List<GraphCall> calls) {
+        List<Integer> srcArgIndexes = getReferenceArgIndexes(methodNode.desc,
+                (methodNode.access & Opcodes.ACC_STATIC) == 0);
+        if (srcArgIndexes.isEmpty()) {
+            return;
+        }
+        for (AbstractInsnNode insn = methodNode.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            if (!(insn instanceof MethodInsnNode)) {
+                continue;
+            }
+            MethodInsnNode methodInsn = (MethodInsnNode) insn;
+            MethodReference.Handle targetMethod = MethodReference.Handle.of(
+                    ClassReference.Handle.of(methodInsn.owner), methodInsn.name, methodInsn.desc);
+            List<Integer> targetArgIndexes = getReferenceArgIndexes(methodInsn.desc,
+                    methodInsn.getOpcode() != Opcodes.INVOKESTATIC);
+            for (int srcArgIndex : srcArgIndexes) {
+                for (int targetArgIndex : targetArgIndexes) {
+                    calls.add(new GraphCall(method, targetMethod, srcArgIndex, null, targetArgIndex));
                 }
             }
         }
     }
 
+    /**
+     * @return The indexes of the object and array arguments of a method with the given desc, counting the receiver, if
+     * any, as argument 0
+     */
+    private static List<Integer> getReferenceArgIndexes(String desc, boolean hasReceiver) {
+        List<Integer> argIndexes = new ArrayList<>();
+        int argIndex = 0;
+        if (hasReceiver) {
+            argIndexes.add(argIndex++);
+        }
+        for (Type argType : Type.getArgumentTypes(desc)) {
+            if (argType.getSort() == Type.OBJECT || argType.getSort() == Type.ARRAY) {
+                argIndexes.add(argIndex);
+            }
+            argIndex++;
+        }
+        return argIndexes;
+    }
+
     public void save() throws IOException {
         DataLoader.saveData(Paths.get("callgraph.dat"), new GraphCall.Factory(), discoveredCalls);
     }
@@ -52,12 +168,12 @@ public class CallGraphDiscovery {
 
         private final Map<ClassReference.Handle, ClassReference> classMap;
         private final InheritanceMap inheritanceMap;
-        private final Map<MethodReference.Handle, Set<Integer>> passthroughDataflow;
+        private final PassthroughSummaries passthroughDataflow;
         private final SerializableDecider serializableDecider;
 
         public ModelGeneratorClassVisitor(Map<ClassReference.Handle, ClassReference> classMap,
                                           InheritanceMap inheritanceMap,
-                                          Map<MethodReference.Handle, Set<Integer>> passthroughDataflow,
+                                          PassthroughSummaries passthroughDataflow,
                                           SerializableDecider serializableDecider, int api) {
             super(api);
             this.classMap = classMap;
@@ -84,12 +200,17 @@ public class CallGraphDiscovery {
         @Override
         public MethodVisitor visitMethod(int access, String name, String desc,
                                          String signature, String[] exceptions) {
-            MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
-            // 核心MethodVisitor是ModelGeneratorMethodVisitor
-            ModelGeneratorMethodVisitor modelGeneratorMethodVisitor = new ModelGeneratorMethodVisitor(classMap,
-                    inheritanceMap, passthroughDataflow, serializableDecider, api, mv, this.name, access, name, desc, signature, exceptions);
+            final MethodReference.Handle method = MethodReference.Handle.of(ClassReference.Handle.of(this.name), name, desc);
+            // 方法体先缓存为MethodNode，再交给核心的ModelGeneratorMethodVisitor分析；超出预算时据此保守地补全调用边
+            MethodNode methodNode = new MethodNode(api, access, name, desc, signature, exceptions) {
+                @Override
+                public void visitEnd() {
+                    super.visitEnd();
+                    discover(method, this, classMap, inheritanceMap, passthroughDataflow, serializableDecider, true);
+                }
+            };
 
-            return new JSRInlinerAdapter(modelGeneratorMethodVisitor, access, name, desc, signature, exceptions);
+            return new JSRInlinerAdapter(methodNode, access, name, desc, signature, exceptions);
         }
 
         @Override
@@ -110,30 +231,31 @@ public class CallGraphDiscovery {
         }
     }
 
-    private class ModelGeneratorMethodVisitor extends TaintTrackingMethodVisitor<String> {
+    private class ModelGeneratorMethodVisitor extends TaintTrackingMethodVisitor<AccessPath> {
 
         private final Map<ClassReference.Handle, ClassReference> classMap;
         private final InheritanceMap inheritanceMap;
         private final SerializableDecider serializableDecider;
-        private final String owner;
+        private final MethodReference.Handle method;
         private final int access;
-        private final String name;
         private final String desc;
+        private final List<GraphCall> calls;
 
         public ModelGeneratorMethodVisitor(Map<ClassReference.Handle, ClassReference> classMap,
                                            InheritanceMap inheritanceMap,
-                                           Map<MethodReference.Handle, Set<Integer>> passthroughDataflow,
+                                           PassthroughSummaries passthroughDataflow,
                                            SerializableDecider serializableDecider, final int api, final MethodVisitor mv,
                                            final String owner, int access, String name, String desc, String signature,
-                                           String[] exceptions) {
-            super(inheritanceMap, passthroughDataflow, api, mv, owner, access, name, desc, signature, exceptions);
+                                           String[] exceptions, boolean checkFrames, List<GraphCall> calls) {
+            super(inheritanceMap, passthroughDataflow, api, mv, owner, access, name, desc, signature, exceptions,
+                    checkFrames, methodBudget);
             this.classMap = classMap;
             this.inheritanceMap = inheritanceMap;
             this.serializableDecider = serializableDecider;
-            this.owner = owner;
+            this.method = MethodReference.Handle.of(ClassReference.Handle.of(owner), name, desc);
             this.access = access;
-            this.name = name;
             this.desc = desc;
+            this.calls = calls;
         }
 
         @Override
@@ -145,13 +267,13 @@ public class CallGraphDiscovery {
             // 判断声明的方法是否是static方法
             if ((this.access & Opcodes.ACC_STATIC) == 0) {
                 // 如果不是，那么就在局部变量表中添加"arg0"，表示当前的对象引用this
-                setLocalTaint(localIndex, "arg" + argIndex);
+                setLocalTaint(localIndex, AccessPath.ofArg(argIndex));
                 localIndex += 1;
                 argIndex += 1;
             }
             // 然后根据方法的参数，依次向局部变量表中添加"arg1", "arg2"...
             for (Type argType : Type.getArgumentTypes(desc)) {
-                setLocalTaint(localIndex, "arg" + argIndex);
+                setLocalTaint(localIndex, AccessPath.ofArg(argIndex));
                 localIndex += argType.getSize();    // localIndex根据参数类型占用的size递增
                 argIndex += 1;
             }
@@ -173,12 +295,12 @@ public class CallGraphDiscovery {
                         Boolean isTransient = null;  // 表示变量是否被transient修饰
 
                         // If a field type could not possibly be serialized, it's effectively transient
-                        if (!couldBeSerialized(serializableDecider, inheritanceMap, new ClassReference.Handle(type.getInternalName()))) {
+                        if (!couldBeSerialized(serializableDecider, inheritanceMap, ClassReference.Handle.of(type.getInternalName()))) {
                             // 判断该字段是否可以通过serializableDecider的决策, 如果不能, 依然把它当做是一个transient成员变量
                             isTransient = Boolean.TRUE;
                         } else {
                             // 如果可以被序列化的话, 从classMap中获取其owner class的引用
-                            ClassReference clazz = classMap.get(new ClassReference.Handle(owner));
+                            ClassReference clazz = classMap.get(ClassReference.Handle.of(owner));
                             // 这部分逻辑在上一节已经出现过了, 找到声明该变量的class, 判断变量是否被transient修饰
                             while (clazz != null) {
                                 for (ClassReference.Member member : clazz.getMembers()) {
@@ -190,17 +312,17 @@ public class CallGraphDiscovery {
                                 if (isTransient != null) {
                                     break;
                                 }
-                                clazz = classMap.get(new ClassReference.Handle(clazz.getSuperClass()));
+                                clazz = classMap.get(ClassReference.Handle.of(clazz.getSuperClass()));
                             }
                         }
                         // newTaint模拟的是GETFIELD指令的结果
-                        Set<String> newTaint = new HashSet<>();
+                        Set<AccessPath> newTaint = new TaintSet<>();
                         // 如果变量不被transient修饰的话
                         if (!Boolean.TRUE.equals(isTransient)) {
-                            // 获取栈顶的元素 (此时栈顶的元素是成员变量的owner class的对象引用, 在这里用字符串表示)
-                            for (String s : getStackTaint(0)) {
-                                // 将格式为<class_name>.<field_name>的一串字符加入到newTaint中
-                                newTaint.add(s + "." + name);
+                            // 获取栈顶的元素 (此时栈顶的元素是成员变量的owner class的对象引用, 在这里用AccessPath表示)
+                            for (AccessPath s : getStackTaint(0)) {
+                                // 在原路径后追加字段，得到形如arg0.<field_name>的路径，超过深度限制时保持原路径
+                                newTaint.add(s.getField(name, accessPathDepth));
                             }
                         }
                         // 委派给父类，模拟栈帧的变化
@@ -236,42 +358,27 @@ public class CallGraphDiscovery {
                 case Opcodes.INVOKEVIRTUAL:
                 case Opcodes.INVOKESPECIAL:
                 case Opcodes.INVOKEINTERFACE:
+                    MethodReference.Handle targetMethod = null;
                     int stackIndex = 0;
                     for (int i = 0; i < argTypes.length; i++) {
                         int argIndex = argTypes.length-1-i;
                         Type type = argTypes[argIndex];
                         // 调用方法前所有参数已经入栈，根据索引获取操作数栈上的参数
-                        Set<String> taint = getStackTaint(stackIndex);
-                        if (taint.size() > 0) {
-                            for (String argSrc : taint) {
-                                if (!argSrc.substring(0, 3).equals("arg")) {
-                                    throw new IllegalStateException("Invalid taint arg: " + argSrc);
-                                }
-                                // 从操作数栈上取出来的参数有两种情况
-                                //   1. "arg0"这种形式，它表示方法中的参数
-                                //   2. "arg0.<filed>"这种形式，表示获取了某个参数的某个成员变量
-                                int dotIndex = argSrc.indexOf('.');
-                                int srcArgIndex;
-                                String srcArgPath;
-                                if (dotIndex == -1) {   // dotIndex == -1对应第1种情况
-                                    // 获取参数的索引位
-                                    srcArgIndex = Integer.parseInt(argSrc.substring(3));
-                                    srcArgPath = null;
-                                } else {    // else-branch对应第2种情况
-                                    // 获取参数的索引位
-                                    srcArgIndex = Integer.parseInt(argSrc.substring(3, dotIndex));
-                                    // 额外获取了一个srcArgPath，也就是"arg0.<field>"的"<field>"部分
-                                    srcArgPath = argSrc.substring(dotIndex+1);
-                                }
-
-                                // 将这些信息用GraphCall包装起来
-                                discoveredCalls.add(new GraphCall(
-                                        new MethodReference.Handle(new ClassReference.Handle(this.owner), this.name, this.desc),
-                                        new MethodReference.Handle(new ClassReference.Handle(owner), name, desc),
-                                        srcArgIndex,    // srcArgIndex表示caller的参数索引
-                                        srcArgPath,     // srcArgPath表示"<field>"部分呢
-                                        argIndex));     // argIndex表示callee的参数索引
+                        Set<AccessPath> taint = getStackTaint(stackIndex);
+                        // 从操作数栈上取出来的参数有两种情况
+                        //   1. "arg0"这种形式，它表示方法中的参数
+                        //   2. "arg0.<filed>"这种形式，表示获取了某个参数的某个成员变量
+                        for (AccessPath argSrc : taint) {
+                            if (targetMethod == null) {
+                                targetMethod = MethodReference.Handle.of(ClassReference.Handle.of(owner), name, desc);
                             }
+                            // 将这些信息用GraphCall包装起来
+                            calls.add(new GraphCall(
+                                    this.method,
+                                    targetMethod,
+                                    argSrc.getArgIndex(),   // srcArgIndex表示caller的参数索引
+                                    argSrc.getFieldPath(),  // srcArgPath表示"<field>"部分, 参数本身则为null
+                                    argIndex));             // argIndex表示callee的参数索引
                         }
 
                         stackIndex += type.getSize();
@@ -286,10 +393,11 @@ public class CallGraphDiscovery {
     }
 
     public static void main(String[] args) throws Exception {
-        ClassLoader classLoader = Util.getWarClassLoader(Paths.get(args[0]));
+        ClassResourceEnumerator classResourceEnumerator = new ClassResourceEnumerator(
+                Collections.singletonList(Paths.get(args[0])), Runtime.getRuntime().availableProcessors());
 
         CallGraphDiscovery callGraphDiscovery = new CallGraphDiscovery();
-        callGraphDiscovery.discover(new ClassResourceEnumerator(classLoader), new JavaDeserializationConfig());
+        callGraphDiscovery.discover(classResourceEnumerator, new JavaDeserializationConfig());
         callGraphDiscovery.save();
     }
 }
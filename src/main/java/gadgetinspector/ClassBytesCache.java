@@ -0,0 +1,75 @@
+package gadgetinspector;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size bounded, least recently used cache of class file bytes. Classes are read from their origin on first use and
+ * read again after they have been evicted. Safe for concurrent use; two threads missing on the same class may both
+ * read it.
+ */
+public class ClassBytesCache {
+    private final long maxBytes;
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(1024, 0.75f, true);
+    private long currentBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param maxBytes Total size of the class files to keep. The most recently used class is always kept, even if it
+     *                 is larger than this.
+     */
+    public ClassBytesCache(long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("Invalid cache size: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    public byte[] get(String className, ClassResourceEnumerator.ClassResource origin) throws IOException {
+        synchronized (this) {
+            byte[] bytes = entries.get(className);
+            if (bytes != null) {
+                hits += 1;
+                return bytes;
+            }
+            misses += 1;
+        }
+
+        byte[] bytes;
+        try (InputStream in = origin.getInputStream()) {
+            if (in == null) {
+                throw new IOException("Unable to read class resource: " + origin.getName());
+            }
+            bytes = ByteStreams.toByteArray(in);
+        }
+
+        synchronized (this) {
+            byte[] previous = entries.put(className, bytes);
+            if (previous != null) {
+                currentBytes -= previous.length;
+            }
+            currentBytes += bytes.length;
+
+            Iterator<Map.Entry<String, byte[]>> it = entries.entrySet().iterator();
+            while (currentBytes > maxBytes && entries.size() > 1) {
+                currentBytes -= it.next().getValue().length;
+                it.remove();
+            }
+        }
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,228 @@
+package gadgetinspector;
+
+import com.google.common.hash.Hashing;
+import org.objectweb.asm.ClassReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the raw bytes of every class file on the analysis classpath so that each class is read from its jar (or the
+ * runtime image) exactly once per run. Class files are packed back to back into large shared chunks instead of one
+ * array per class, and are handed out as views into those chunks, so building a {@link ClassReader} from the store
+ * never copies or decompresses anything.
+ * <p>
+ * Only the first definition of each class name is kept, as with a class loader search path. Later definitions are
+ * fingerprinted against the kept one and counted as either identical copies or shadowed, differing ones.
+ * <p>
+ * Classes which can be read again from where they were found may instead be added as references, which index and
+ * fingerprint the class without keeping its bytes. Their bytes are then served by a {@link ClassBytesCache}.
+ */
+public class ClassBytesStore {
+    private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private final List<byte[]> chunks = new ArrayList<>();
+    private int currentChunk = -1;
+    private int chunkPosition = CHUNK_SIZE;
+
+    private static final int EXTERNAL_ENTRY = -1;
+    private static final int REFERENCE_CHUNK = -1;
+
+    private final Map<String, Integer> entriesByClassName = new HashMap<>();
+    private final List<String> classNames = new ArrayList<>();
+    private int[] entryChunks = new int[1024];
+    private int[] entryOffsets = new int[1024];
+    private int[] entryLengths = new int[1024];
+    private long[] entryFingerprints = new long[1024];
+    private long totalBytes = 0;
+    private long residentBytes = 0;
+    private int identicalDuplicates = 0;
+    private int shadowedDuplicates = 0;
+
+    private byte[] readBuffer = new byte[64 * 1024];
+
+    /**
+     * Marks a class as defined ahead of everything in the store, so that any definition added later is skipped as
+     * shadowed. Used for classes that are supplied by other means, such as a {@link JdkSnapshot}.
+     */
+    public void addExternal(String className) {
+        entriesByClassName.putIfAbsent(className, EXTERNAL_ENTRY);
+    }
+
+    /**
+     * Reads a class file fully into the store.
+     * @return The index of the new entry, or -1 if the class was already defined
+     */
+    public int add(InputStream inputStream) throws IOException {
+        int length = 0;
+        int n;
+        while ((n = inputStream.read(readBuffer, length, readBuffer.length - length)) > 0) {
+            length += n;
+            if (length == readBuffer.length) {
+                readBuffer = Arrays.copyOf(readBuffer, readBuffer.length * 2);
+            }
+        }
+        return add(readBuffer, 0, length);
+    }
+
+    /**
+     * Copies a class file into the store.
+     * @return The index of the new entry, or -1 if the class was already defined
+     */
+    public int add(byte[] bytes, int offset, int length) {
+        String className = getNewClassName(bytes, offset, length);
+        if (className == null) {
+            return -1;
+        }
+
+        if (length > CHUNK_SIZE) {
+            // Oversized class files get a chunk of their own; the current chunk stays open for smaller classes
+            byte[] chunk = new byte[length];
+            System.arraycopy(bytes, offset, chunk, 0, length);
+            chunks.add(chunk);
+            return addEntry(className, chunks.size() - 1, 0, length);
+        }
+        if (chunkPosition + length > CHUNK_SIZE) {
+            chunks.add(new byte[CHUNK_SIZE]);
+            currentChunk = chunks.size() - 1;
+            chunkPosition = 0;
+        }
+        System.arraycopy(bytes, offset, chunks.get(currentChunk), chunkPosition, length);
+        int entry = addEntry(className, currentChunk, chunkPosition, length);
+        chunkPosition += length;
+        return entry;
+    }
+
+    /**
+     * Indexes a class file without keeping its bytes.
+     * @return The index of the new entry, or -1 if the class was already defined
+     */
+    public int addReference(byte[] bytes, int offset, int length) {
+        String className = getNewClassName(bytes, offset, length);
+        if (className == null) {
+            return -1;
+        }
+        int entry = addEntry(className, REFERENCE_CHUNK, 0, length);
+        // The bytes are gone once this returns, so the fingerprint has to be taken now
+        entryFingerprints[entry] = fingerprint(bytes, offset, length);
+        return entry;
+    }
+
+    /**
+     * @return The internal name of the class, or null if a class of that name was already defined
+     */
+    private String getNewClassName(byte[] bytes, int offset, int length) {
+        // Parsing the header validates the class file and gives us the internal class name to key it by
+        String className = new ClassReader(bytes, offset, length).getClassName();
+
+        Integer existingEntry = entriesByClassName.get(className);
+        if (existingEntry == null) {
+            return className;
+        }
+        if (existingEntry != EXTERNAL_ENTRY && getFingerprint(existingEntry) == fingerprint(bytes, offset, length)) {
+            identicalDuplicates += 1;
+        } else {
+            shadowedDuplicates += 1;
+        }
+        return null;
+    }
+
+    private int addEntry(String className, int chunk, int offset, int length) {
+        int entry = classNames.size();
+        if (entry == entryChunks.length) {
+            entryChunks = Arrays.copyOf(entryChunks, entry * 2);
+            entryOffsets = Arrays.copyOf(entryOffsets, entry * 2);
+            entryLengths = Arrays.copyOf(entryLengths, entry * 2);
+            entryFingerprints = Arrays.copyOf(entryFingerprints, entry * 2);
+        }
+        entryChunks[entry] = chunk;
+        entryOffsets[entry] = offset;
+        entryLengths[entry] = length;
+        entryFingerprints[entry] = 0;
+        classNames.add(className);
+        entriesByClassName.put(className, entry);
+        totalBytes += length;
+        if (chunk != REFERENCE_CHUNK) {
+            residentBytes += length;
+        }
+        return entry;
+    }
+
+    public int size() {
+        return classNames.size();
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return The size of the class files whose bytes are held by the store, as opposed to referenced
+     */
+    public long getResidentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * @return The number of skipped class files whose bytes matched the definition that was kept
+     */
+    public int getIdenticalDuplicates() {
+        return identicalDuplicates;
+    }
+
+    /**
+     * @return The number of skipped class files which differed from the definition that was kept
+     */
+    public int getShadowedDuplicates() {
+        return shadowedDuplicates;
+    }
+
+    // Fingerprints are only needed once a class name turns up twice, so they are computed on first use
+    private long getFingerprint(int entry) {
+        if (entryFingerprints[entry] == 0) {
+            entryFingerprints[entry] = fingerprint(chunks.get(entryChunks[entry]), entryOffsets[entry],
+                    entryLengths[entry]);
+        }
+        return entryFingerprints[entry];
+    }
+
+    private static long fingerprint(byte[] bytes, int offset, int length) {
+        long fingerprint = Hashing.murmur3_128().hashBytes(bytes, offset, length).asLong();
+        // 0 marks a fingerprint that has not been computed yet
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    /**
+     * @return The index of the first entry defining the given internal class name, or -1 if there is none
+     */
+    public int indexOf(String className) {
+        Integer entry = entriesByClassName.get(className);
+        return entry == null ? -1 : entry;
+    }
+
+    public String getClassName(int entry) {
+        return classNames.get(entry);
+    }
+
+    public ClassReader newClassReader(int entry) {
+        checkResident(entry);
+        return new ClassReader(chunks.get(entryChunks[entry]), entryOffsets[entry], entryLengths[entry]);
+    }
+
+    public InputStream newInputStream(int entry) {
+        checkResident(entry);
+        return new ByteArrayInputStream(chunks.get(entryChunks[entry]), entryOffsets[entry], entryLengths[entry]);
+    }
+
+    private void checkResident(int entry) {
+        if (entryChunks[entry] == REFERENCE_CHUNK) {
+            throw new IllegalStateException("Bytes of " + classNames.get(entry) + " are not held by the store");
+        }
+    }
+}
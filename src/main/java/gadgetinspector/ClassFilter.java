@@ -0,0 +1,77 @@
+package gadgetinspector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which classes are in scope for analysis, from include and exclude globs over internal class names such as
+ * {@code org/acme/**} or {@code com/sun/**}. In a glob, {@code **} matches any sequence of characters, {@code *} any
+ * sequence within one package segment, and {@code ?} a single character other than '/'.
+ * <p>
+ * A class is in scope if it matches any include (or there are no includes) and matches no exclude.
+ */
+public class ClassFilter {
+    private final List<Pattern> includes;
+    private final List<Pattern> excludes;
+
+    public ClassFilter(List<String> includes, List<String> excludes) {
+        this.includes = compile(includes);
+        this.excludes = compile(excludes);
+    }
+
+    public boolean isEmpty() {
+        return includes.isEmpty() && excludes.isEmpty();
+    }
+
+    public boolean isIncluded(String className) {
+        if (!includes.isEmpty() && !matchesAny(includes, className)) {
+            return false;
+        }
+        return !matchesAny(excludes, className);
+    }
+
+    private static boolean matchesAny(List<Pattern> patterns, String className) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(className).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Pattern> compile(List<String> globs) {
+        List<Pattern> patterns = new ArrayList<>(globs.size());
+        for (String glob : globs) {
+            patterns.add(toPattern(glob));
+        }
+        return patterns;
+    }
+
+    private static Pattern toPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int literalStart = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c != '*' && c != '?') {
+                continue;
+            }
+            if (literalStart < i) {
+                regex.append(Pattern.quote(glob.substring(literalStart, i)));
+            }
+            if (c == '?') {
+                regex.append("[^/]");
+            } else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                regex.append(".*");
+                i++;
+            } else {
+                regex.append("[^/]*");
+            }
+            literalStart = i + 1;
+        }
+        if (literalStart < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(literalStart)));
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
@@ -1,29 +1,534 @@
 package gadgetinspector;
 
+import com.google.common.io.ByteStreams;
 import com.google.common.reflect.ClassPath;
+import org.objectweb.asm.ClassReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.*;
 import java.nio.file.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+public class ClassResourceEnumerator implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClassResourceEnumerator.class);
+    // Jars scanned ahead of the one being added to the store, per thread; each holds all its class bytes until added
+    private static final int SCAN_AHEAD_PER_THREAD = 2;
 
-public class ClassResourceEnumerator {
     private final ClassLoader classLoader;
+    private final List<Path> classPath;
+    private final int parallelism;
+    private final boolean includeRuntimeClasses;
+
+    private final Set<String> externalClasses = new HashSet<>();
+    private ClassFilter classFilter;
+    private ClassBytesCache classBytesCache;
+    private final List<ZipFile> openArchives = new ArrayList<>();
+
+    private ClassBytesStore classBytesStore;
+    private List<ClassResource> storedClasses;
+    private List<ClassResource> hierarchyOnlyClasses;
+    private Map<String, ClassResource> classesByName;
 
     public ClassResourceEnumerator(ClassLoader classLoader) throws IOException {
         this.classLoader = classLoader;
+        this.classPath = null;
+        this.parallelism = 1;
+        this.includeRuntimeClasses = true;
+    }
+
+    /**
+     * Creates an enumerator which reads class files straight out of the given jars and class directories instead of
+     * going through a class loader. Each jar's central directory is opened once with {@link ZipFile}, and up to
+     * parallelism jars are scanned concurrently. Entries keep classpath order, jar by jar.
+     * <p>
+     * WARs and Spring Boot fat jars are expanded in memory: their WEB-INF/classes or BOOT-INF/classes entries are
+     * read from the outer archive, and each nested library jar is streamed out of it, so nothing is extracted to
+     * disk.
+     */
+    public ClassResourceEnumerator(List<Path> classPath, int parallelism) {
+        this(classPath, parallelism, true);
+    }
+
+    /**
+     * @param includeRuntimeClasses Whether the classes of the running JRE are enumerated ahead of the classpath. This
+     *                              is turned off when they come from a {@link JdkSnapshot} instead.
+     */
+    public ClassResourceEnumerator(List<Path> classPath, int parallelism, boolean includeRuntimeClasses) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+        }
+        this.classLoader = null;
+        this.classPath = new ArrayList<>(classPath);
+        this.parallelism = parallelism;
+        this.includeRuntimeClasses = includeRuntimeClasses;
+    }
+
+    /**
+     * Declares classes that are defined ahead of the classpath without being enumerated, such as those linked in from
+     * a {@link JdkSnapshot}. Classpath copies of them are skipped. Must be called before the classes are loaded.
+     *
+     * @param classNames Internal class names
+     */
+    public synchronized void addExternalClasses(Collection<String> classNames) {
+        if (storedClasses != null) {
+            throw new IllegalStateException("Classes have already been loaded");
+        }
+        externalClasses.addAll(classNames);
+    }
+
+    /**
+     * Restricts {@link #getAllClasses()} to the classes in scope of the filter. Out of scope classes which in scope
+     * classes extend or implement, directly or indirectly, are returned by {@link #getHierarchyOnlyClasses()} instead.
+     * Must be called before the classes are loaded.
+     */
+    public synchronized void setClassFilter(ClassFilter classFilter) {
+        if (storedClasses != null) {
+            throw new IllegalStateException("Classes have already been loaded");
+        }
+        this.classFilter = classFilter;
+    }
+
+    /**
+     * Bounds the memory used for class bytes. Instead of holding every class file for the whole run, classes which can
+     * be read again from a jar, directory or the runtime image are only indexed while loading, and their bytes are
+     * kept in a least recently used cache of the given size. Classes inside nested jars of a WAR or fat jar cannot be
+     * re-read cheaply and stay resident. Archives are then kept open until {@link #close()}.
+     * Must be called before the classes are loaded.
+     */
+    public synchronized void setClassCacheSize(long maxBytes) {
+        if (storedClasses != null) {
+            throw new IllegalStateException("Classes have already been loaded");
+        }
+        this.classBytesCache = new ClassBytesCache(maxBytes);
+    }
+
+    /**
+     * @return Whether class bytes are served from a bounded cache, in which case {@link ClassResource#prefetch()} is
+     * worth calling ahead of use
+     */
+    public boolean hasBoundedClassCache() {
+        return classBytesCache != null;
+    }
+
+    /**
+     * Returns every class on the classpath, runtime classes first. The first call reads all class files into a
+     * {@link ClassBytesStore}; the returned resources, and those returned by every later call, are served from it.
+     * <p>
+     * Each class name is returned at most once. When a class is defined more than once, the definition a class loader
+     * would find first wins and the others are skipped.
+     */
+    public synchronized Collection<ClassResource> getAllClasses() throws IOException {
+        if (storedClasses == null) {
+            loadClasses();
+        }
+        return storedClasses;
+    }
+
+    private void loadClasses() throws IOException {
+        Collection<ClassResource> sourceClasses = new ArrayList<>();
+        if (includeRuntimeClasses) {
+            sourceClasses.addAll(getRuntimeClasses());
+        }
+        if (classLoader != null) {
+            for (ClassPath.ClassInfo classInfo : ClassPath.from(classLoader).getAllClasses()) {
+                sourceClasses.add(new ClassLoaderClassResource(classLoader, classInfo.getResourceName()));
+            }
+        }
+
+        ClassBytesStore store = new ClassBytesStore();
+        for (String externalClass : externalClasses) {
+            store.addExternal(externalClass);
+        }
+        List<ClassResource> result = new ArrayList<>(sourceClasses.size());
+        for (ClassResource sourceClass : sourceClasses) {
+            try (InputStream in = sourceClass.getInputStream()) {
+                if (in == null) {
+                    LOGGER.error("Unable to read class resource: " + sourceClass.getName());
+                    continue;
+                }
+                if (classBytesCache != null) {
+                    addReference(store, result, new ScannedClass(sourceClass.getName(), ByteStreams.toByteArray(in),
+                            sourceClass));
+                    continue;
+                }
+                int entry = store.add(in);
+                if (entry != -1) {
+                    result.add(new StoredClassResource(store, entry, sourceClass.getName()));
+                }
+            } catch (RuntimeException e) {
+                LOGGER.error("Invalid class file: " + sourceClass.getName(), e);
+            }
+        }
+        if (classPath != null) {
+            scanClassPath(store, result);
+        }
+        LOGGER.info(String.format("Loaded %d class files (%d MB, %d MB resident)", store.size(),
+                store.getTotalBytes() / (1024 * 1024), store.getResidentBytes() / (1024 * 1024)));
+        if (store.getIdenticalDuplicates() + store.getShadowedDuplicates() > 0) {
+            LOGGER.info(String.format("Skipped %d duplicate class files: %d identical copies, %d shadowed by a differing definition",
+                    store.getIdenticalDuplicates() + store.getShadowedDuplicates(), store.getIdenticalDuplicates(),
+                    store.getShadowedDuplicates()));
+        }
+
+        this.classBytesStore = store;
+        if (classFilter == null || classFilter.isEmpty()) {
+            this.storedClasses = Collections.unmodifiableList(result);
+            this.hierarchyOnlyClasses = Collections.emptyList();
+        } else {
+            applyClassFilter(result);
+        }
+    }
+
+    private void applyClassFilter(List<ClassResource> classes) throws IOException {
+        Map<String, ClassResource> classesByName = new HashMap<>();
+        List<ClassResource> included = new ArrayList<>();
+        Deque<String> pending = new ArrayDeque<>();
+        for (ClassResource classResource : classes) {
+            String className = ((StoredClassResource) classResource).getClassName();
+            classesByName.put(className, classResource);
+            if (classFilter.isIncluded(className)) {
+                included.add(classResource);
+                pending.add(className);
+            }
+        }
+
+        // Walk up from the in scope classes, reading only class headers, to find the supertypes they depend on
+        Set<String> visited = new HashSet<>(pending);
+        while (!pending.isEmpty()) {
+            ClassResource classResource = classesByName.get(pending.remove());
+            if (classResource == null) {
+                continue;
+            }
+            ClassReader cr = ((StoredClassResource) classResource).getClassReader();
+            if (cr.getSuperName() != null && visited.add(cr.getSuperName())) {
+                pending.add(cr.getSuperName());
+            }
+            for (String iface : cr.getInterfaces()) {
+                if (visited.add(iface)) {
+                    pending.add(iface);
+                }
+            }
+        }
+
+        List<ClassResource> hierarchyOnly = new ArrayList<>();
+        for (ClassResource classResource : classes) {
+            String className = ((StoredClassResource) classResource).getClassName();
+            if (visited.contains(className) && !classFilter.isIncluded(className)) {
+                hierarchyOnly.add(classResource);
+            }
+        }
+        LOGGER.info(String.format("%d classes in scope, %d more needed for their hierarchy, %d out of scope",
+                included.size(), hierarchyOnly.size(), classes.size() - included.size() - hierarchyOnly.size()));
+
+        this.storedClasses = Collections.unmodifiableList(included);
+        this.hierarchyOnlyClasses = Collections.unmodifiableList(hierarchyOnly);
+    }
+
+    /**
+     * @return The in scope class with the given internal name, or null if there is none
+     */
+    public synchronized ClassResource getClassResource(String className) throws IOException {
+        if (classesByName == null) {
+            Map<String, ClassResource> result = new HashMap<>();
+            for (ClassResource classResource : getAllClasses()) {
+                result.put(((StoredClassResource) classResource).getClassName(), classResource);
+            }
+            classesByName = result;
+        }
+        return classesByName.get(className);
     }
 
-    public Collection<ClassResource> getAllClasses() throws IOException {
-        Collection<ClassResource> result = new ArrayList<>(getRuntimeClasses());
-        for (ClassPath.ClassInfo classInfo : ClassPath.from(classLoader).getAllClasses()) {
-            result.add(new ClassLoaderClassResource(classLoader, classInfo.getResourceName()));
+    /**
+     * Returns the out of scope supertypes of the classes returned by {@link #getAllClasses()}, in classpath order. Only
+     * their class headers and fields are needed, so that the inheritance of in scope classes is complete; their
+     * methods are not analyzed. Empty unless a {@link ClassFilter} is set.
+     */
+    public synchronized Collection<ClassResource> getHierarchyOnlyClasses() throws IOException {
+        if (hierarchyOnlyClasses == null) {
+            loadClasses();
+        }
+        return hierarchyOnlyClasses;
+    }
+
+    /**
+     * @return The store backing the resources returned by {@link #getAllClasses()}
+     */
+    public synchronized ClassBytesStore getClassBytesStore() throws IOException {
+        if (classBytesStore == null) {
+            loadClasses();
+        }
+        return classBytesStore;
+    }
+
+    private void scanClassPath(ClassBytesStore store, List<ClassResource> result) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        List<ZipFile> archives = new ArrayList<>();
+        try {
+            List<Callable<List<ScannedClass>>> scans = new ArrayList<>(classPath.size());
+            for (Path path : classPath) {
+                if (Files.isDirectory(path)) {
+                    scans.add(() -> scanDirectory(path));
+                    continue;
+                }
+
+                ZipFile zipFile;
+                try {
+                    zipFile = new ZipFile(path.toFile());
+                } catch (IOException e) {
+                    LOGGER.warn("Skipping unreadable archive " + path + ": " + e.getMessage());
+                    continue;
+                }
+                archives.add(zipFile);
+                ArchiveLayout layout = ArchiveLayout.of(zipFile);
+                if (layout == null) {
+                    scans.add(() -> scanZip(zipFile, "", false));
+                    continue;
+                }
+
+                // Classes packaged directly in the archive come first, then each nested jar in archive order,
+                // mirroring the search order of the class loader a container or Spring Boot would build.
+                scans.add(() -> scanZip(zipFile, layout.classesPrefix, layout.includeRootClasses));
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (layout.isNestedJar(entry)) {
+                        scans.add(() -> scanNestedJar(zipFile, entry));
+                    }
+                }
+            }
+            // Scans are drained in classpath order so that the store, and therefore every analysis stage, sees
+            // classes in the same order no matter which jar finished scanning first. Only a few scans run ahead of
+            // the one being drained, so the scanned bytes held at once do not grow with the classpath.
+            int maxPendingScans = parallelism * SCAN_AHEAD_PER_THREAD;
+            Deque<Future<List<ScannedClass>>> pendingScans = new ArrayDeque<>(maxPendingScans);
+            int nextScan = 0;
+            while (nextScan < scans.size() || !pendingScans.isEmpty()) {
+                while (nextScan < scans.size() && pendingScans.size() < maxPendingScans) {
+                    pendingScans.add(executor.submit(scans.get(nextScan++)));
+                }
+                List<ScannedClass> scannedClasses;
+                try {
+                    scannedClasses = pendingScans.poll().get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+                for (ScannedClass scannedClass : scannedClasses) {
+                    if (classBytesCache != null && scannedClass.origin != null) {
+                        addReference(store, result, scannedClass);
+                        continue;
+                    }
+                    try {
+                        int entry = store.add(scannedClass.bytes, 0, scannedClass.bytes.length);
+                        if (entry != -1) {
+                            result.add(new StoredClassResource(store, entry, scannedClass.name));
+                        } else {
+                            LOGGER.debug("Skipping duplicate class file: " + scannedClass.name);
+                        }
+                    } catch (RuntimeException e) {
+                        LOGGER.error("Invalid class file: " + scannedClass.name, e);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            if (classBytesCache != null) {
+                // Referenced classes are read from the archives again on cache misses
+                openArchives.addAll(archives);
+                archives.clear();
+            }
+            for (ZipFile archive : archives) {
+                try {
+                    archive.close();
+                } catch (IOException e) {
+                    LOGGER.error("Error closing " + archive.getName(), e);
+                }
+            }
+        }
+    }
+
+    private void addReference(ClassBytesStore store, List<ClassResource> result, ScannedClass scannedClass) {
+        try {
+            int entry = store.addReference(scannedClass.bytes, 0, scannedClass.bytes.length);
+            if (entry != -1) {
+                result.add(new CachedClassResource(store, entry, scannedClass.name, classBytesCache,
+                        scannedClass.origin));
+            } else {
+                LOGGER.debug("Skipping duplicate class file: " + scannedClass.name);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Invalid class file: " + scannedClass.name, e);
+        }
+    }
+
+    /**
+     * Closes the archives kept open for a bounded class cache. Classes can no longer be read afterwards.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (classBytesCache != null) {
+            LOGGER.debug(String.format("Class cache hits %d, misses %d", classBytesCache.getHits(),
+                    classBytesCache.getMisses()));
+        }
+        IOException closeException = null;
+        for (ZipFile archive : openArchives) {
+            try {
+                archive.close();
+            } catch (IOException e) {
+                closeException = e;
+            }
+        }
+        openArchives.clear();
+        if (closeException != null) {
+            throw closeException;
+        }
+    }
+
+    /**
+     * Reads the class files of a zip whose names start with prefix, naming them relative to that prefix.
+     * @param includeRootClasses Whether classes outside WEB-INF/, BOOT-INF/ and META-INF/ are read too
+     */
+    private static List<ScannedClass> scanZip(ZipFile zipFile, String prefix, boolean includeRootClasses) throws IOException {
+        List<ScannedClass> result = new ArrayList<>();
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            String name = entry.getName();
+            if (entry.isDirectory() || !name.endsWith(".class")) {
+                continue;
+            }
+            if (!prefix.isEmpty()) {
+                if (name.startsWith(prefix)) {
+                    name = name.substring(prefix.length());
+                } else if (!includeRootClasses || name.startsWith("WEB-INF/") || name.startsWith("BOOT-INF/")
+                        || name.startsWith("META-INF/")) {
+                    continue;
+                }
+            }
+            try (InputStream in = zipFile.getInputStream(entry)) {
+                result.add(new ScannedClass(name, ByteStreams.toByteArray(in), new ZipEntryClassResource(zipFile, entry)));
+            }
+        }
+        return result;
+    }
+
+    private static List<ScannedClass> scanNestedJar(ZipFile zipFile, ZipEntry jarEntry) throws IOException {
+        List<ScannedClass> result = new ArrayList<>();
+        try (ZipInputStream in = new ZipInputStream(zipFile.getInputStream(jarEntry))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                if (!entry.isDirectory() && entry.getName().endsWith(".class")) {
+                    result.add(new ScannedClass(entry.getName(), ByteStreams.toByteArray(in), null));
+                }
+            }
         }
         return result;
     }
 
+    /**
+     * Describes where classes live inside a WAR or a Spring Boot fat jar.
+     */
+    private static class ArchiveLayout {
+        private static final ArchiveLayout WAR = new ArchiveLayout("WEB-INF/classes/",
+                new String[] {"WEB-INF/lib/", "WEB-INF/lib-provided/"}, false);
+        private static final ArchiveLayout BOOT_JAR = new ArchiveLayout("BOOT-INF/classes/",
+                new String[] {"BOOT-INF/lib/"}, true);
+
+        private final String classesPrefix;
+        private final String[] libPrefixes;
+        private final boolean includeRootClasses;
+
+        private ArchiveLayout(String classesPrefix, String[] libPrefixes, boolean includeRootClasses) {
+            this.classesPrefix = classesPrefix;
+            this.libPrefixes = libPrefixes;
+            this.includeRootClasses = includeRootClasses;
+        }
+
+        /**
+         * @return The layout of the archive, or null if it is a plain jar
+         */
+        private static ArchiveLayout of(ZipFile zipFile) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                String name = entries.nextElement().getName();
+                if (name.startsWith("BOOT-INF/")) {
+                    return BOOT_JAR;
+                }
+                if (name.startsWith("WEB-INF/classes/") || name.startsWith("WEB-INF/lib/")) {
+                    return WAR;
+                }
+            }
+            return null;
+        }
+
+        private boolean isNestedJar(ZipEntry entry) {
+            if (entry.isDirectory() || !entry.getName().endsWith(".jar")) {
+                return false;
+            }
+            for (String libPrefix : libPrefixes) {
+                if (entry.getName().startsWith(libPrefix) && entry.getName().indexOf('/', libPrefix.length()) == -1) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static List<ScannedClass> scanDirectory(Path root) throws IOException {
+        List<ScannedClass> result = new ArrayList<>();
+        List<Path> classFiles = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.filter(p -> p.toString().endsWith(".class") && Files.isRegularFile(p)).forEach(classFiles::add);
+        }
+        for (Path classFile : classFiles) {
+            String name = root.relativize(classFile).toString().replace(root.getFileSystem().getSeparator(), "/");
+            result.add(new ScannedClass(name, Files.readAllBytes(classFile), new PathClassResource(classFile)));
+        }
+        return result;
+    }
+
+    private static class ScannedClass {
+        private final String name;
+        private final byte[] bytes;
+        // Where the class can be read from again, or null if only at the cost of re-reading a nested jar
+        private final ClassResource origin;
+
+        private ScannedClass(String name, byte[] bytes, ClassResource origin) {
+            this.name = name;
+            this.bytes = bytes;
+            this.origin = origin;
+        }
+    }
+
     private Collection<ClassResource> getRuntimeClasses() throws IOException {
         // A hacky way to get the current JRE's rt.jar. Depending on the class loader, rt.jar may be in the
         // bootstrap classloader so all the JDK classes will be excluded from classpath scanning with this!
@@ -59,6 +564,100 @@ public class ClassResourceEnumerator {
     public static interface ClassResource {
         public InputStream getInputStream() throws IOException;
         public String getName();
+
+        public default ClassReader getClassReader() throws IOException {
+            try (InputStream in = getInputStream()) {
+                return new ClassReader(in);
+            }
+        }
+
+        /**
+         * Hints that the class is about to be read, so that its bytes can be loaded on a background thread.
+         */
+        public default void prefetch() throws IOException {
+        }
+    }
+
+    private static class StoredClassResource implements ClassResource {
+        private final ClassBytesStore store;
+        private final int entry;
+        private final String resourceName;
+
+        private StoredClassResource(ClassBytesStore store, int entry, String resourceName) {
+            this.store = store;
+            this.entry = entry;
+            this.resourceName = resourceName;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return store.newInputStream(entry);
+        }
+
+        @Override
+        public ClassReader getClassReader() throws IOException {
+            return store.newClassReader(entry);
+        }
+
+        String getClassName() {
+            return store.getClassName(entry);
+        }
+
+        @Override
+        public String getName() {
+            return resourceName;
+        }
+    }
+
+    private static class CachedClassResource extends StoredClassResource {
+        private final ClassBytesCache cache;
+        private final ClassResource origin;
+
+        private CachedClassResource(ClassBytesStore store, int entry, String resourceName, ClassBytesCache cache,
+                                    ClassResource origin) {
+            super(store, entry, resourceName);
+            this.cache = cache;
+            this.origin = origin;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new ByteArrayInputStream(getBytes());
+        }
+
+        @Override
+        public ClassReader getClassReader() throws IOException {
+            return new ClassReader(getBytes());
+        }
+
+        @Override
+        public void prefetch() throws IOException {
+            getBytes();
+        }
+
+        private byte[] getBytes() throws IOException {
+            return cache.get(getClassName(), origin);
+        }
+    }
+
+    private static class ZipEntryClassResource implements ClassResource {
+        private final ZipFile zipFile;
+        private final ZipEntry entry;
+
+        private ZipEntryClassResource(ZipFile zipFile, ZipEntry entry) {
+            this.zipFile = zipFile;
+            this.entry = entry;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return zipFile.getInputStream(entry);
+        }
+
+        @Override
+        public String getName() {
+            return zipFile.getName() + "!/" + entry.getName();
+        }
     }
 
     private static class PathClassResource implements ClassResource {
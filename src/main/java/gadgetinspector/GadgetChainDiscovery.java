@@ -3,12 +3,16 @@ package gadgetinspector;
 import gadgetinspector.config.GIConfig;
 import gadgetinspector.config.JavaDeserializationConfig;
 import gadgetinspector.data.ClassReference;
+import gadgetinspector.data.CompactCallGraph;
 import gadgetinspector.data.DataLoader;
 import gadgetinspector.data.GraphCall;
 import gadgetinspector.data.InheritanceDeriver;
 import gadgetinspector.data.InheritanceMap;
+import gadgetinspector.data.MethodCalls;
+import gadgetinspector.data.MethodImplementations;
 import gadgetinspector.data.MethodReference;
 import gadgetinspector.data.Source;
+import gadgetinspector.data.SymbolTable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,7 +25,6 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -33,55 +36,81 @@ public class GadgetChainDiscovery {
     private static final Logger LOGGER = LoggerFactory.getLogger(GadgetChainDiscovery.class);
 
     private final GIConfig config;
+    private final int parallelism;
+    private boolean saveMethodImplementations = false;
+    private boolean rapidTypeAnalysis = false;
 
-    public GadgetChainDiscovery(GIConfig config) {
+    /**
+     * @param parallelism Number of threads used to resolve method implementations when saving them
+     */
+    public GadgetChainDiscovery(GIConfig config, int parallelism) {
         this.config = config;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Whether to resolve the implementations of every method up front and write them to methodimpl.dat, for
+     * debugging. Otherwise implementations are only resolved for the methods the search reaches.
+     */
+    public void setSaveMethodImplementations(boolean saveMethodImplementations) {
+        this.saveMethodImplementations = saveMethodImplementations;
+    }
+
+    /**
+     * Whether to restrict the implementations of virtual calls to the classes found live by {@link RapidTypeAnalysis}.
+     */
+    public void setRapidTypeAnalysis(boolean rapidTypeAnalysis) {
+        this.rapidTypeAnalysis = rapidTypeAnalysis;
     }
 
     public void discover() throws Exception {
         Map<MethodReference.Handle, MethodReference> methodMap = DataLoader.loadMethods();
         InheritanceMap inheritanceMap = InheritanceMap.load();
-        Map<MethodReference.Handle, Set<MethodReference.Handle>> methodImplMap = InheritanceDeriver.getAllMethodImplementations(
-                inheritanceMap, methodMap);
-
-        final ImplementationFinder implementationFinder = config.getImplementationFinder(
-                methodMap, methodImplMap, inheritanceMap);
-
-        try (Writer writer = Files.newBufferedWriter(Paths.get("methodimpl.dat"))) {
-            for (Map.Entry<MethodReference.Handle, Set<MethodReference.Handle>> entry : methodImplMap.entrySet()) {
-                writer.write(entry.getKey().getClassReference().getName());
-                writer.write("\t");
-                writer.write(entry.getKey().getName());
-                writer.write("\t");
-                writer.write(entry.getKey().getDesc());
-                writer.write("\n");
-                for (MethodReference.Handle method : entry.getValue()) {
-                    writer.write("\t");
-                    writer.write(method.getClassReference().getName());
+
+        List<Source> sources = DataLoader.loadData(Paths.get("sources.dat"), new Source.Factory());
+        MethodImplementations methodImplementations = new MethodImplementations(inheritanceMap, methodMap);
+
+        ImplementationFinder implementationFinder = config.getImplementationFinder(
+                methodMap, methodImplementations, inheritanceMap);
+        if (rapidTypeAnalysis) {
+            LOGGER.info("Running rapid type analysis...");
+            RapidTypeAnalysis analysis = new RapidTypeAnalysis(DataLoader.loadClasses(), methodMap, inheritanceMap,
+                    methodImplementations, config.getSerializableDecider(methodMap, inheritanceMap),
+                    DataLoader.loadData(Paths.get("methodcalls.dat"), new MethodCalls.Factory()));
+            analysis.analyze(sources);
+            implementationFinder = new RtaImplementationFinder(implementationFinder, analysis);
+        }
+
+        if (saveMethodImplementations) {
+            Map<MethodReference.Handle, Set<MethodReference.Handle>> methodImplMap = InheritanceDeriver.getAllMethodImplementations(
+                    inheritanceMap, methodMap, parallelism);
+            try (Writer writer = Files.newBufferedWriter(Paths.get("methodimpl.dat"))) {
+                for (Map.Entry<MethodReference.Handle, Set<MethodReference.Handle>> entry : methodImplMap.entrySet()) {
+                    writer.write(entry.getKey().getClassReference().getName());
                     writer.write("\t");
-                    writer.write(method.getName());
+                    writer.write(entry.getKey().getName());
                     writer.write("\t");
-                    writer.write(method.getDesc());
+                    writer.write(entry.getKey().getDesc());
                     writer.write("\n");
+                    for (MethodReference.Handle method : entry.getValue()) {
+                        writer.write("\t");
+                        writer.write(method.getClassReference().getName());
+                        writer.write("\t");
+                        writer.write(method.getName());
+                        writer.write("\t");
+                        writer.write(method.getDesc());
+                        writer.write("\n");
+                    }
                 }
             }
         }
 
-        Map<MethodReference.Handle, Set<GraphCall>> graphCallMap = new HashMap<>();
-        for (GraphCall graphCall : DataLoader.loadData(Paths.get("callgraph.dat"), new GraphCall.Factory())) {
-            MethodReference.Handle caller = graphCall.getCallerMethod();
-            if (!graphCallMap.containsKey(caller)) {
-                Set<GraphCall> graphCalls = new HashSet<>();
-                graphCalls.add(graphCall);
-                graphCallMap.put(caller, graphCalls);
-            } else {
-                graphCallMap.get(caller).add(graphCall);
-            }
-        }
+        CompactCallGraph callGraph = CompactCallGraph.fromGraphCalls(
+                DataLoader.loadData(Paths.get("callgraph.dat"), new GraphCall.Factory()));
 
         Set<GadgetChainLink> exploredMethods = new HashSet<>();
         LinkedList<GadgetChain> methodsToExplore = new LinkedList<>();
-        for (Source source : DataLoader.loadData(Paths.get("sources.dat"), new Source.Factory())) {
+        for (Source source : sources) {
             GadgetChainLink srcLink = new GadgetChainLink(source.getSourceMethod(), source.getTaintedArgIndex());
             if (exploredMethods.contains(srcLink)) {
                 continue;
@@ -101,28 +130,28 @@ public class GadgetChainDiscovery {
             GadgetChain chain = methodsToExplore.pop();
             GadgetChainLink lastLink = chain.links.get(chain.links.size()-1);
 
-            Set<GraphCall> methodCalls = graphCallMap.get(lastLink.method);
-            if (methodCalls != null) {
-                for (GraphCall graphCall : methodCalls) {
-                    if (graphCall.getCallerArgIndex() != lastLink.taintedArgIndex) {
+            int caller = lastLink.method.getId();
+            for (int edge = callGraph.getEdgeStart(caller); edge < callGraph.getEdgeEnd(caller); edge++) {
+                if (callGraph.getCallerArgIndex(edge) != lastLink.taintedArgIndex) {
+                    continue;
+                }
+
+                int targetArgIndex = callGraph.getTargetArgIndex(edge);
+                Set<MethodReference.Handle> allImpls = implementationFinder.getImplementations(
+                        SymbolTable.getMethodHandle(callGraph.getTarget(edge)));
+
+                for (MethodReference.Handle methodImpl : allImpls) {
+                    GadgetChainLink newLink = new GadgetChainLink(methodImpl, targetArgIndex);
+                    if (exploredMethods.contains(newLink)) {
                         continue;
                     }
 
-                    Set<MethodReference.Handle> allImpls = implementationFinder.getImplementations(graphCall.getTargetMethod());
-
-                    for (MethodReference.Handle methodImpl : allImpls) {
-                        GadgetChainLink newLink = new GadgetChainLink(methodImpl, graphCall.getTargetArgIndex());
-                        if (exploredMethods.contains(newLink)) {
-                            continue;
-                        }
-
-                        GadgetChain newChain = new GadgetChain(chain, newLink);
-                        if (isSink(methodImpl, graphCall.getTargetArgIndex(), inheritanceMap)) {
-                            discoveredGadgets.add(newChain);
-                        } else {
-                            methodsToExplore.add(newChain);
-                            exploredMethods.add(newLink);
-                        }
+                    GadgetChain newChain = new GadgetChain(chain, newLink);
+                    if (isSink(methodImpl, targetArgIndex, inheritanceMap)) {
+                        discoveredGadgets.add(newChain);
+                    } else {
+                        methodsToExplore.add(newChain);
+                        exploredMethods.add(newLink);
                     }
                 }
             }
@@ -135,7 +164,7 @@ public class GadgetChainDiscovery {
             }
         }
 
-        LOGGER.info("Found {} gadget chains.", discoveredGadgets.size());
+        LOGGER.info("Found {} gadget chains after {} iterations.", discoveredGadgets.size(), iteration);
     }
 
     private static void printGadgetChain(Writer writer, GadgetChain chain) throws IOException {
@@ -298,7 +327,7 @@ public class GadgetChainDiscovery {
             return true;
         }
 
-        if (inheritanceMap.isSubclassOf(method.getClassReference(), new ClassReference.Handle("java/lang/ClassLoader"))
+        if (inheritanceMap.isSubclassOf(method.getClassReference(), ClassReference.Handle.of("java/lang/ClassLoader"))
                 && method.getName().equals("<init>")) {
             return true;
         }
@@ -313,7 +342,7 @@ public class GadgetChainDiscovery {
             return true;
         }
 
-        if (inheritanceMap.isSubclassOf(method.getClassReference(), new ClassReference.Handle("groovy/lang/MetaClass"))
+        if (inheritanceMap.isSubclassOf(method.getClassReference(), ClassReference.Handle.of("groovy/lang/MetaClass"))
                 && Arrays.asList("invokeMethod", "invokeConstructor", "invokeStaticMethod").contains(method.getName())) {
             return true;
         }
@@ -327,7 +356,8 @@ public class GadgetChainDiscovery {
     }
 
     public static void main(String[] args) throws Exception {
-        GadgetChainDiscovery gadgetChainDiscovery = new GadgetChainDiscovery(new JavaDeserializationConfig());
+        GadgetChainDiscovery gadgetChainDiscovery = new GadgetChainDiscovery(new JavaDeserializationConfig(),
+                Runtime.getRuntime().availableProcessors());
         gadgetChainDiscovery.discover();
     }
 }
@@ -11,7 +11,9 @@ import org.slf4j.LoggerFactory;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Main entry point for running an end-to-end analysis. Deletes all data files before starting and writes discovered
@@ -22,7 +24,24 @@ public class GadgetInspector {
 
     private static void printUsage() {
         System.out.println("Usage:\n  Pass either a single argument which will be interpreted as a WAR, or pass " +
-                "any number of arguments which will be intepretted as a list of JARs forming a classpath.");
+                "any number of arguments which will be intepretted as a list of JARs forming a classpath.\n\n" +
+                "Options:\n" +
+                "  --config <name>     Deserialization config to use: jserial (default), jackson or xstream\n" +
+                "  --resume            Reuse data files left over from a previous run\n" +
+                "  --threads <n>       Number of threads used by the parallel analysis stages (default: all cores)\n" +
+                "  --jdk-snapshot <dir> Reuse (and build on first use) an analysis of the running JDK stored under dir\n" +
+                "  --include <glob>    Only analyze classes whose internal name matches, e.g. org/acme/** (repeatable)\n" +
+                "  --exclude <glob>    Do not analyze classes whose internal name matches, e.g. com/sun/** (repeatable)\n" +
+                "  --class-cache-mb <n> Keep at most n MB of class files in memory, re-reading them as needed\n" +
+                "  --save-method-impls Also write the implementations of every method to methodimpl.dat, for debugging\n" +
+                "  --rta               Only follow virtual calls into classes which can be instantiated or deserialized\n" +
+                "  --models <file>     Add passthrough dataflow models, replacing built-in ones for the same methods (repeatable)\n" +
+                "  --access-path-depth <n> Follow at most n fields read from a tainted argument in the call graph (default: " +
+                CallGraphDiscovery.DEFAULT_ACCESS_PATH_DEPTH + ")\n" +
+                "  --max-method-insns <n> Analyze at most n instructions of a method, assuming the worst beyond (default: " +
+                MethodBudget.DEFAULT_MAX_INSTRUCTIONS + ", 0 for no limit)\n" +
+                "  --max-method-ms <n> Analyze a method for at most n ms, assuming the worst beyond (default: " +
+                MethodBudget.DEFAULT_MAX_MILLIS + ", 0 for no limit)");
 
     }
 
@@ -35,6 +54,17 @@ public class GadgetInspector {
         configureLogging();
 
         boolean resume = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        Path jdkSnapshotRoot = null;
+        List<String> includes = new ArrayList<>();
+        List<String> excludes = new ArrayList<>();
+        long classCacheMb = 0;
+        boolean saveMethodImpls = false;
+        boolean rta = false;
+        List<Path> modelFiles = new ArrayList<>();
+        int accessPathDepth = CallGraphDiscovery.DEFAULT_ACCESS_PATH_DEPTH;
+        int maxMethodInstructions = MethodBudget.DEFAULT_MAX_INSTRUCTIONS;
+        long maxMethodMillis = MethodBudget.DEFAULT_MAX_MILLIS;
         GIConfig config = ConfigRepository.getConfig("jserial");
 
         int argIndex = 0;
@@ -50,6 +80,43 @@ public class GadgetInspector {
                 if (config == null) {
                     throw new IllegalArgumentException("Invalid config name: " + args[argIndex]);
                 }
+            } else if (arg.equals("--threads")) {
+                threads = Integer.parseInt(args[++argIndex]);
+                if (threads < 1) {
+                    throw new IllegalArgumentException("Invalid thread count: " + args[argIndex]);
+                }
+            } else if (arg.equals("--include")) {
+                includes.add(args[++argIndex]);
+            } else if (arg.equals("--exclude")) {
+                excludes.add(args[++argIndex]);
+            } else if (arg.equals("--save-method-impls")) {
+                saveMethodImpls = true;
+            } else if (arg.equals("--rta")) {
+                rta = true;
+            } else if (arg.equals("--class-cache-mb")) {
+                classCacheMb = Long.parseLong(args[++argIndex]);
+                if (classCacheMb < 1) {
+                    throw new IllegalArgumentException("Invalid class cache size: " + args[argIndex]);
+                }
+            } else if (arg.equals("--jdk-snapshot")) {
+                jdkSnapshotRoot = Paths.get(args[++argIndex]);
+            } else if (arg.equals("--models")) {
+                modelFiles.add(Paths.get(args[++argIndex]));
+            } else if (arg.equals("--access-path-depth")) {
+                accessPathDepth = Integer.parseInt(args[++argIndex]);
+                if (accessPathDepth < 0) {
+                    throw new IllegalArgumentException("Invalid access path depth: " + args[argIndex]);
+                }
+            } else if (arg.equals("--max-method-insns")) {
+                maxMethodInstructions = Integer.parseInt(args[++argIndex]);
+                if (maxMethodInstructions < 0) {
+                    throw new IllegalArgumentException("Invalid instruction budget: " + args[argIndex]);
+                }
+            } else if (arg.equals("--max-method-ms")) {
+                maxMethodMillis = Long.parseLong(args[++argIndex]);
+                if (maxMethodMillis < 0) {
+                    throw new IllegalArgumentException("Invalid time budget: " + args[argIndex]);
+                }
             } else {
                 throw new IllegalArgumentException("Unexpected argument: " + arg);
             }
@@ -57,30 +124,33 @@ public class GadgetInspector {
             argIndex += 1;
         }
 
-        final ClassLoader classLoader;
-        if (args.length == argIndex+1 && args[argIndex].toLowerCase().endsWith(".war")) {
-            Path path = Paths.get(args[argIndex]);
-            LOGGER.info("Using WAR classpath: " + path);
-            classLoader = Util.getWarClassLoader(path);
-        } else {
-            final Path[] jarPaths = new Path[args.length - argIndex];
-            for (int i = 0; i < args.length - argIndex; i++) {
-                Path path = Paths.get(args[argIndex + i]).toAbsolutePath();
-                if (!Files.exists(path)) {
-                    throw new IllegalArgumentException("Invalid jar path: " + path);
-                }
-                jarPaths[i] = path;
+        // WARs and Spring Boot fat jars are expanded in memory by the enumerator and exploded class directories are
+        // scanned in place, so every argument is simply a classpath entry.
+        final List<Path> classPath = new ArrayList<>(args.length - argIndex);
+        for (int i = 0; i < args.length - argIndex; i++) {
+            Path path = Paths.get(args[argIndex + i]).toAbsolutePath();
+            if (!Files.exists(path)) {
+                throw new IllegalArgumentException("Invalid classpath entry: " + path);
             }
-            LOGGER.info("Using classpath: " + Arrays.toString(jarPaths));
-            classLoader = Util.getJarClassLoader(jarPaths);
+            classPath.add(path);
         }
-        final ClassResourceEnumerator classResourceEnumerator = new ClassResourceEnumerator(classLoader);
+        if (classPath.size() == 1 && classPath.get(0).toString().toLowerCase().endsWith(".war")) {
+            LOGGER.info("Using WAR classpath: " + classPath.get(0));
+        } else {
+            LOGGER.info("Using classpath: " + classPath);
+        }
+
+        PassthroughModels passthroughModels = PassthroughModels.loadDefault();
+        for (Path modelFile : modelFiles) {
+            passthroughModels.load(modelFile);
+        }
+        MethodBudget methodBudget = new MethodBudget(maxMethodInstructions, maxMethodMillis);
 
         if (!resume) {
             // Delete all existing dat files
             LOGGER.info("Deleting stale data...");
-            for (String datFile : Arrays.asList("classes.dat", "methods.dat", "inheritanceMap.dat",
-                    "passthrough.dat", "callgraph.dat", "sources.dat", "methodimpl.dat")) {
+            for (String datFile : Arrays.asList("classes.dat", "methods.dat", "inheritanceMap.dat", "methodcalls.dat",
+                    "passthrough.dat", "callgraph.dat", "sources.dat", "methodimpl.dat", "truncated-methods.txt")) {
                 final Path path = Paths.get(datFile);
                 if (Files.exists(path)) {
                     Files.delete(path);
@@ -88,27 +158,90 @@ public class GadgetInspector {
             }
         }
 
-        // Perform the various discovery steps
-        if (!Files.exists(Paths.get("classes.dat")) || !Files.exists(Paths.get("methods.dat"))
-                || !Files.exists(Paths.get("inheritanceMap.dat"))) {
-            LOGGER.info("Running method discovery...");
-            MethodDiscovery methodDiscovery = new MethodDiscovery();
-            methodDiscovery.discover(classResourceEnumerator);
-            methodDiscovery.save();
+        JdkSnapshot jdkSnapshot = null;
+        if (jdkSnapshotRoot != null) {
+            // Snapshots are reused across runs, so they are built with the instruction limit only: the time limit
+            // would make their contents depend on the load of the machine that built them.
+            jdkSnapshot = JdkSnapshot.forCurrentRuntime(jdkSnapshotRoot, config, passthroughModels, accessPathDepth,
+                    new MethodBudget(maxMethodInstructions, 0));
+            if (jdkSnapshot.exists()) {
+                LOGGER.info("Using JDK snapshot " + jdkSnapshot.getDirectory());
+            } else {
+                jdkSnapshot.build(threads);
+            }
         }
 
-        if (!Files.exists(Paths.get("passthrough.dat"))) {
-            LOGGER.info("Analyzing methods for passthrough dataflow...");
-            PassthroughDiscovery passthroughDiscovery = new PassthroughDiscovery();
-            passthroughDiscovery.discover(classResourceEnumerator, config);
-            passthroughDiscovery.save();
+        // Runtime classes are only scanned when they are not supplied by a JDK snapshot
+        final ClassResourceEnumerator classResourceEnumerator = new ClassResourceEnumerator(classPath, threads,
+                jdkSnapshot == null);
+        if (jdkSnapshot != null) {
+            classResourceEnumerator.addExternalClasses(jdkSnapshot.loadClassNames());
+        }
+        classResourceEnumerator.setClassFilter(new ClassFilter(includes, excludes));
+        if (classCacheMb > 0) {
+            classResourceEnumerator.setClassCacheSize(classCacheMb * 1024 * 1024);
         }
 
-        if (!Files.exists(Paths.get("callgraph.dat"))) {
-            LOGGER.info("Analyzing methods in order to build a call graph...");
-            CallGraphDiscovery callGraphDiscovery = new CallGraphDiscovery();
-            callGraphDiscovery.discover(classResourceEnumerator, config);
-            callGraphDiscovery.save();
+        // Perform the various discovery steps
+        try {
+            if (!Files.exists(Paths.get("classes.dat")) || !Files.exists(Paths.get("methods.dat"))
+                    || !Files.exists(Paths.get("inheritanceMap.dat")) || !Files.exists(Paths.get("methodcalls.dat"))) {
+                LOGGER.info("Running method discovery...");
+                MethodDiscovery methodDiscovery = new MethodDiscovery(threads);
+                if (jdkSnapshot != null) {
+                    methodDiscovery.link(jdkSnapshot);
+                }
+                methodDiscovery.discover(classResourceEnumerator);
+                methodDiscovery.save();
+            }
+
+            if (!Files.exists(Paths.get("passthrough.dat"))) {
+                PassthroughDiscovery passthroughDiscovery = new PassthroughDiscovery(threads, passthroughModels);
+                passthroughDiscovery.setMethodBudget(methodBudget);
+                if (jdkSnapshot != null) {
+                    passthroughDiscovery.link(jdkSnapshot);
+                }
+                // The call graph is built from the same method bodies, as each one's callees are summarized
+                CallGraphDiscovery callGraphDiscovery = null;
+                if (!Files.exists(Paths.get("callgraph.dat"))) {
+                    LOGGER.info("Analyzing methods for passthrough dataflow and a call graph...");
+                    callGraphDiscovery = new CallGraphDiscovery(accessPathDepth);
+                    callGraphDiscovery.setMethodBudget(methodBudget);
+                    if (jdkSnapshot != null) {
+                        callGraphDiscovery.link(jdkSnapshot);
+                    }
+                    passthroughDiscovery.setCallGraphDiscovery(callGraphDiscovery);
+                } else {
+                    LOGGER.info("Analyzing methods for passthrough dataflow...");
+                }
+                passthroughDiscovery.discover(classResourceEnumerator, config);
+                passthroughDiscovery.save();
+                if (callGraphDiscovery != null) {
+                    callGraphDiscovery.save();
+                }
+            }
+
+            if (!Files.exists(Paths.get("callgraph.dat"))) {
+                LOGGER.info("Analyzing methods in order to build a call graph...");
+                CallGraphDiscovery callGraphDiscovery = new CallGraphDiscovery(accessPathDepth);
+                callGraphDiscovery.setMethodBudget(methodBudget);
+                if (jdkSnapshot != null) {
+                    callGraphDiscovery.link(jdkSnapshot);
+                }
+                callGraphDiscovery.discover(classResourceEnumerator, config);
+                callGraphDiscovery.save();
+            }
+        } finally {
+            classResourceEnumerator.close();
+        }
+
+        if (methodBudget.getTruncatedAnalyses() > 0) {
+            LOGGER.info(methodBudget.getTruncatedAnalyses() + " method analyses were cut short by their budget; "
+                    + "see truncated-methods.txt");
+            methodBudget.saveReport(Paths.get("truncated-methods.txt"));
+        } else {
+            // A resumed run must not leave the report of an earlier one behind
+            Files.deleteIfExists(Paths.get("truncated-methods.txt"));
         }
 
         if (!Files.exists(Paths.get("sources.dat"))) {
@@ -120,7 +253,9 @@ public class GadgetInspector {
 
         {
             LOGGER.info("Searching call graph for gadget chains...");
-            GadgetChainDiscovery gadgetChainDiscovery = new GadgetChainDiscovery(config);
+            GadgetChainDiscovery gadgetChainDiscovery = new GadgetChainDiscovery(config, threads);
+            gadgetChainDiscovery.setSaveMethodImplementations(saveMethodImpls);
+            gadgetChainDiscovery.setRapidTypeAnalysis(rta);
             gadgetChainDiscovery.discover();
         }
 
@@ -0,0 +1,216 @@
+package gadgetinspector;
+
+import com.google.common.hash.Hashing;
+import gadgetinspector.config.GIConfig;
+import gadgetinspector.data.ClassReference;
+import gadgetinspector.data.DataLoader;
+import gadgetinspector.data.GraphCall;
+import gadgetinspector.data.MethodCalls;
+import gadgetinspector.data.MethodReference;
+import gadgetinspector.data.PassthroughSummaries;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A reusable analysis of the running JDK. The classes, methods, method calls, passthrough dataflow and call graph of
+ * the runtime image are the same for every target analyzed on a given JDK build, so they are computed once and stored
+ * in a directory keyed by java.version, a hash identifying the runtime image, the config name, a hash of the
+ * passthrough models, the access path depth of the call graph and the instruction budget of a method. Later runs link
+ * the snapshot in instead of re-scanning the runtime classes, and derive the inheritance map from its classes.
+ * <p>
+ * Summaries in the snapshot are computed without knowledge of the target classes. The only place this shows is when
+ * a JDK method reads a field whose declared type is only serializable through a subclass on the target classpath;
+ * such a field is treated as transient within the JDK method.
+ */
+public class JdkSnapshot {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JdkSnapshot.class);
+
+    private static final List<String> DATA_FILES = Collections.unmodifiableList(Arrays.asList(
+            "classes.dat", "methods.dat", "methodcalls.dat", "passthrough.dat", "callgraph.dat"));
+    // Written while building, but not stored: linking runs derive the inheritance map from the classes again
+    private static final String INHERITANCE_MAP_FILE = "inheritanceMap.dat";
+
+    private final Path directory;
+    private final GIConfig config;
+    private final PassthroughModels passthroughModels;
+    private final int accessPathDepth;
+    private final MethodBudget methodBudget;
+
+    private JdkSnapshot(Path directory, GIConfig config, PassthroughModels passthroughModels, int accessPathDepth,
+                        MethodBudget methodBudget) {
+        this.directory = directory;
+        this.config = config;
+        this.passthroughModels = passthroughModels;
+        this.accessPathDepth = accessPathDepth;
+        this.methodBudget = methodBudget;
+    }
+
+    /**
+     * @param snapshotRoot Directory holding the snapshots of every JDK and config seen so far
+     * @param methodBudget Budget for building the snapshot, without a time limit so that its contents do not depend on
+     *                     the machine
+     */
+    public static JdkSnapshot forCurrentRuntime(Path snapshotRoot, GIConfig config, PassthroughModels passthroughModels,
+                                                int accessPathDepth, MethodBudget methodBudget) throws IOException {
+        String javaVersion = System.getProperty("java.version").replaceAll("[^A-Za-z0-9._-]", "_");
+        String runtimeHash = hashRuntimeImage().substring(0, 16);
+        String modelsHash = passthroughModels.getDigest().substring(0, 16);
+        return new JdkSnapshot(snapshotRoot.resolve(javaVersion + "-" + runtimeHash)
+                .resolve(config.getName() + "-" + modelsHash + "-k" + accessPathDepth + "-i"
+                        + methodBudget.getMaxInstructions()), config, passthroughModels, accessPathDepth, methodBudget);
+    }
+
+    /**
+     * Identifies the runtime image by its location, the VM and runtime versions, and the size and modification time of
+     * the image file, which is far cheaper than hashing hundreds of megabytes on every run.
+     */
+    private static String hashRuntimeImage() throws IOException {
+        File runtimeImage = null;
+
+        URL stringClassUrl = Object.class.getResource("String.class");
+        URLConnection connection = stringClassUrl.openConnection();
+        if (connection instanceof JarURLConnection) {
+            try {
+                runtimeImage = new File(((JarURLConnection) connection).getJarFileURL().toURI());
+            } catch (URISyntaxException e) {
+                throw new IOException(e);
+            }
+        } else {
+            Path modules = Paths.get(System.getProperty("java.home"), "lib", "modules");
+            if (Files.isRegularFile(modules)) {
+                runtimeImage = modules.toFile();
+            }
+        }
+
+        StringBuilder runtimeId = new StringBuilder()
+                .append(System.getProperty("java.home")).append('\n')
+                .append(System.getProperty("java.vm.version")).append('\n')
+                .append(System.getProperty("java.runtime.version"));
+        // An exploded runtime image is identified by its build alone
+        if (runtimeImage != null) {
+            runtimeId.append('\n').append(runtimeImage.getAbsolutePath())
+                    .append('\n').append(runtimeImage.length())
+                    .append('\n').append(runtimeImage.lastModified());
+        }
+        return Hashing.sha256().hashString(runtimeId, StandardCharsets.UTF_8).toString();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return Whether the snapshot has been built, with every data file the current version of the analysis needs
+     */
+    public boolean exists() throws IOException {
+        for (String dataFile : DATA_FILES) {
+            if (!Files.isRegularFile(directory.resolve(dataFile))) {
+                return false;
+            }
+        }
+        // Snapshots from before passthrough.dat was binary are rebuilt
+        return PassthroughSummaries.isCurrentFormat(directory.resolve("passthrough.dat"));
+    }
+
+    /**
+     * Analyzes the runtime classes and stores the results in the snapshot directory. The analysis stages write their
+     * data files to the working directory, so this must run before any data file of the main analysis exists.
+     */
+    public void build(int threads) throws Exception {
+        List<String> builtFiles = new ArrayList<>(DATA_FILES);
+        builtFiles.add(INHERITANCE_MAP_FILE);
+        for (String dataFile : builtFiles) {
+            if (Files.exists(Paths.get(dataFile))) {
+                throw new IllegalStateException("Cannot build JDK snapshot while " + dataFile
+                        + " exists in the working directory; rerun without --resume");
+            }
+        }
+
+        LOGGER.info("Building JDK snapshot in " + directory + "...");
+        ClassResourceEnumerator runtimeClasses = new ClassResourceEnumerator(Collections.emptyList(), threads, true);
+
+        MethodDiscovery methodDiscovery = new MethodDiscovery(threads);
+        methodDiscovery.discover(runtimeClasses);
+        methodDiscovery.save();
+
+        PassthroughDiscovery passthroughDiscovery = new PassthroughDiscovery(threads, passthroughModels);
+        CallGraphDiscovery callGraphDiscovery = new CallGraphDiscovery(accessPathDepth);
+        passthroughDiscovery.setMethodBudget(methodBudget);
+        callGraphDiscovery.setMethodBudget(methodBudget);
+        passthroughDiscovery.setCallGraphDiscovery(callGraphDiscovery);
+        passthroughDiscovery.discover(runtimeClasses, config);
+        passthroughDiscovery.save();
+        callGraphDiscovery.save();
+
+        // Move the results into place through a temp directory so that an interrupted build never looks complete
+        Path tmpDirectory = directory.resolveSibling(directory.getFileName() + ".tmp");
+        Files.createDirectories(tmpDirectory);
+        for (String dataFile : DATA_FILES) {
+            Files.move(Paths.get(dataFile), tmpDirectory.resolve(dataFile), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.delete(Paths.get(INHERITANCE_MAP_FILE));
+        if (Files.exists(directory)) {
+            // Left behind by an older version which stored fewer data files
+            deleteRecursively(directory);
+        }
+        Files.move(tmpDirectory, directory, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    public List<ClassReference> loadClasses() throws IOException {
+        return DataLoader.loadData(directory.resolve("classes.dat"), new ClassReference.Factory());
+    }
+
+    /**
+     * @return The internal names of the classes in the snapshot
+     */
+    public List<String> loadClassNames() throws IOException {
+        List<String> classNames = new ArrayList<>();
+        for (ClassReference classReference : loadClasses()) {
+            classNames.add(classReference.getName());
+        }
+        return classNames;
+    }
+
+    public List<MethodReference> loadMethods() throws IOException {
+        return DataLoader.loadData(directory.resolve("methods.dat"), new MethodReference.Factory());
+    }
+
+    public List<MethodCalls> loadMethodCalls() throws IOException {
+        return DataLoader.loadData(directory.resolve("methodcalls.dat"), new MethodCalls.Factory());
+    }
+
+    public PassthroughSummaries loadPassthroughDataflow() throws IOException {
+        return PassthroughSummaries.load(directory.resolve("passthrough.dat"));
+    }
+
+    public List<GraphCall> loadCallGraph() throws IOException {
+        return DataLoader.loadData(directory.resolve("callgraph.dat"), new GraphCall.Factory());
+    }
+}
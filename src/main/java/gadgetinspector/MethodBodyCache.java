@@ -0,0 +1,141 @@
+package gadgetinspector;
+
+import gadgetinspector.data.ClassReference;
+import gadgetinspector.data.MethodReference;
+import gadgetinspector.data.SymbolTable;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.JSRInlinerAdapter;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds the parsed method bodies of classes still in use, so that analyzing many methods of one class decodes the
+ * class file once rather than once per method. Bodies are JSR-inlined and carry expanded frames, ready to be replayed
+ * into a method visitor with {@link MethodNode#accept(MethodVisitor)}. Debug information, which no analysis reads, is
+ * skipped, so bodies hold fewer labels to replay and less memory.
+ * <p>
+ * Only the bodies of the methods expected to be taken are decoded. Each body is handed out once and then dropped, and
+ * a class is dropped once all its bodies have been handed out, once it is evicted by the caller, which knows when no
+ * more of its bodies will be taken, or when more than the given number of classes are held, least recently used first.
+ * Safe for concurrent use.
+ */
+public class MethodBodyCache {
+    private final Map<String, Map<String, MethodNode>> methodBodies;
+    private final BitSet wantedMethods;
+    private int decodedClasses = 0;
+    private int takenBodies = 0;
+    private int peakClasses = 0;
+
+    /**
+     * @param wantedMethods {@link SymbolTable} IDs of the methods whose bodies will be taken; the bodies of other
+     *                      methods, and of those already taken, are skipped when decoding. Null to decode every
+     *                      method.
+     */
+    public MethodBodyCache(final int maxClasses, BitSet wantedMethods) {
+        this.wantedMethods = wantedMethods == null ? null : (BitSet) wantedMethods.clone();
+        this.methodBodies = new LinkedHashMap<String, Map<String, MethodNode>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Map<String, MethodNode>> eldest) {
+                return size() > maxClasses;
+            }
+        };
+    }
+
+    /**
+     * @return The body of the given method of the class, or null if the class does not declare it
+     */
+    public MethodNode take(ClassResourceEnumerator.ClassResource classResource, MethodReference.Handle method)
+            throws IOException {
+        String className = method.getClassReference().getName();
+        synchronized (this) {
+            Map<String, MethodNode> classBodies = methodBodies.get(className);
+            if (classBodies != null) {
+                return take(className, classBodies, method);
+            }
+        }
+
+        // Decoded without holding the lock; should two threads decode the same class, the first result is kept
+        Map<String, MethodNode> decodedBodies = decode(classResource);
+        synchronized (this) {
+            decodedClasses += 1;
+            Map<String, MethodNode> classBodies = methodBodies.get(className);
+            if (classBodies == null) {
+                classBodies = decodedBodies;
+                methodBodies.put(className, classBodies);
+                peakClasses = Math.max(peakClasses, methodBodies.size());
+            }
+            return take(className, classBodies, method);
+        }
+    }
+
+    private MethodNode take(String className, Map<String, MethodNode> classBodies, MethodReference.Handle method) {
+        MethodNode methodNode = classBodies.remove(method.getName() + method.getDesc());
+        if (classBodies.isEmpty()) {
+            methodBodies.remove(className);
+        }
+        if (methodNode != null) {
+            takenBodies += 1;
+            // Should the class be pushed out and decoded again, this body is not needed any more
+            if (wantedMethods != null) {
+                wantedMethods.clear(method.getId());
+            }
+        }
+        return methodNode;
+    }
+
+    /**
+     * Drops the remaining bodies of the given classes, none of which will be taken any more.
+     */
+    public synchronized void evict(Collection<String> classNames) {
+        for (String className : classNames) {
+            methodBodies.remove(className);
+        }
+    }
+
+    private Map<String, MethodNode> decode(ClassResourceEnumerator.ClassResource classResource) throws IOException {
+        final Map<String, MethodNode> classBodies = new HashMap<>();
+        ClassReader cr = classResource.getClassReader();
+        final ClassReference.Handle classHandle = ClassReference.Handle.of(cr.getClassName());
+        cr.accept(new ClassVisitor(Opcodes.ASM6) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+                                             String[] exceptions) {
+                if (wantedMethods != null && !isWanted(MethodReference.Handle.of(classHandle, name, desc).getId())) {
+                    return null;
+                }
+                MethodNode methodNode = new MethodNode(Opcodes.ASM6, access, name, desc, signature, exceptions);
+                classBodies.put(name + desc, methodNode);
+                return new JSRInlinerAdapter(methodNode, access, name, desc, signature, exceptions);
+            }
+        }, ClassReader.SKIP_DEBUG | ClassReader.EXPAND_FRAMES);
+        return classBodies;
+    }
+
+    private synchronized boolean isWanted(int methodId) {
+        return wantedMethods.get(methodId);
+    }
+
+    public synchronized int getDecodedClasses() {
+        return decodedClasses;
+    }
+
+    public synchronized int getTakenBodies() {
+        return takenBodies;
+    }
+
+    /**
+     * @return The largest number of classes held at once
+     */
+    public synchronized int getPeakClasses() {
+        return peakClasses;
+    }
+}
@@ -0,0 +1,145 @@
+package gadgetinspector;
+
+import gadgetinspector.data.MethodReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the instructions visited and the time spent by one {@link TaintTrackingMethodVisitor} on one method body, so
+ * that a handful of generated methods near the size limit of the class file format cannot stall an analysis. A visitor
+ * over budget throws {@link ExceededException}, upon which the analysis falls back to a conservative result for the
+ * method: its return value is tainted by all of its arguments, and every argument may flow into every argument of
+ * each call it makes.
+ * <p>
+ * The methods cut short are recorded for the run's report. The instruction limit gives the same results on every run;
+ * the time limit depends on the machine and load, and is meant as a safety net well above any ordinary method.
+ * Safe for concurrent use.
+ */
+public class MethodBudget {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodBudget.class);
+
+    // Above the largest method of the JDK, about 19,000 instructions
+    public static final int DEFAULT_MAX_INSTRUCTIONS = 20000;
+    public static final long DEFAULT_MAX_MILLIS = 10000;
+    // The clock is read once every this many instructions
+    private static final int TIME_CHECK_INTERVAL = 256;
+
+    private final int maxInstructions;
+    private final long maxNanos;
+    private final Set<MethodReference.Handle> truncatedMethods = ConcurrentHashMap.newKeySet();
+    private final List<String> report = new ArrayList<>();
+
+    /**
+     * @param maxInstructions Instructions visited per method body, or 0 for no limit
+     * @param maxMillis Milliseconds spent per method body, or 0 for no limit
+     */
+    public MethodBudget(int maxInstructions, long maxMillis) {
+        if (maxInstructions < 0 || maxMillis < 0) {
+            throw new IllegalArgumentException("Invalid method budget: " + maxInstructions + " instructions, "
+                    + maxMillis + " ms");
+        }
+        this.maxInstructions = maxInstructions;
+        this.maxNanos = TimeUnit.MILLISECONDS.toNanos(maxMillis);
+    }
+
+    public MethodBudget() {
+        this(DEFAULT_MAX_INSTRUCTIONS, DEFAULT_MAX_MILLIS);
+    }
+
+    public int getMaxInstructions() {
+        return maxInstructions;
+    }
+
+    /**
+     * Called by a visitor for every instruction it visits.
+     *
+     * @param instructions Instructions visited so far, including this one
+     * @param startNanos {@link System#nanoTime()} when the visitor started on the body
+     */
+    void check(int instructions, long startNanos) {
+        if (maxInstructions > 0 && instructions > maxInstructions) {
+            throw new ExceededException(instructions, System.nanoTime() - startNanos);
+        }
+        if (maxNanos > 0 && instructions % TIME_CHECK_INTERVAL == 0) {
+            long elapsedNanos = System.nanoTime() - startNanos;
+            if (elapsedNanos > maxNanos) {
+                throw new ExceededException(instructions, elapsedNanos);
+            }
+        }
+    }
+
+    /**
+     * Records that the given analysis of the method was cut short and fell back to a conservative result.
+     */
+    public void truncated(String analysis, MethodReference.Handle method, ExceededException e) {
+        truncatedMethods.add(method);
+        long millis = TimeUnit.NANOSECONDS.toMillis(e.getElapsedNanos());
+        LOGGER.warn(String.format("Truncated %s analysis of %s.%s%s after %d instructions and %d ms", analysis,
+                method.getClassReference().getName(), method.getName(), method.getDesc(), e.getInstructions(), millis));
+        synchronized (report) {
+            report.add(String.join("\t", method.getClassReference().getName(), method.getName(), method.getDesc(),
+                    analysis, Integer.toString(e.getInstructions()), Long.toString(millis)));
+        }
+    }
+
+    /**
+     * @return Whether some analysis of the method has been cut short, in which case later analyses of the same body
+     * may go straight to the conservative result
+     */
+    public boolean isTruncated(MethodReference.Handle method) {
+        return truncatedMethods.contains(method);
+    }
+
+    public int getTruncatedAnalyses() {
+        synchronized (report) {
+            return report.size();
+        }
+    }
+
+    /**
+     * Writes one line per truncated analysis: the method's class, name and desc, the analysis, and the instructions
+     * visited and milliseconds spent before it was cut short.
+     */
+    public void saveReport(Path reportFile) throws IOException {
+        synchronized (report) {
+            try (BufferedWriter writer = Files.newBufferedWriter(reportFile, StandardCharsets.UTF_8)) {
+                for (String line : report) {
+                    writer.write(line);
+                    writer.write("\n");
+                }
+            }
+        }
+    }
+
+    public static class ExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final int instructions;
+        private final long elapsedNanos;
+
+        private ExceededException(int instructions, long elapsedNanos) {
+            super("Method budget exceeded after " + instructions + " instructions", null, false, false);
+            this.instructions = instructions;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getInstructions() {
+            return instructions;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+    }
+}
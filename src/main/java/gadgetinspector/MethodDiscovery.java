@@ -3,52 +3,162 @@ package gadgetinspector;
 import gadgetinspector.data.ClassReference;
 import gadgetinspector.data.DataLoader;
 import gadgetinspector.data.InheritanceDeriver;
+import gadgetinspector.data.MethodCalls;
 import gadgetinspector.data.MethodReference;
 import org.objectweb.asm.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.file.Paths;
-import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/**
+ * The frontend pass over the classpath. Each class is parsed once to collect its class record, its methods and the
+ * methods each of them invokes, which are saved to classes.dat, methods.dat, inheritanceMap.dat and methodcalls.dat.
+ */
 public class MethodDiscovery {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MethodDiscovery.class);
 
+    /** Number of classes handed to a worker at a time when discovering in parallel. */
+    private static final int CHUNK_SIZE = 256;
+
     private final List<ClassReference> discoveredClasses = new ArrayList<>();
     private final List<MethodReference> discoveredMethods = new ArrayList<>();
+    private final List<MethodCalls> discoveredCalls = new ArrayList<>();
+
+    private final int parallelism;
+
+    public MethodDiscovery() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param parallelism Number of worker threads used to parse classes. A value of 1 parses every class on the
+     *                    calling thread.
+     */
+    public MethodDiscovery(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
 
     public void save() throws IOException {
         DataLoader.saveData(Paths.get("classes.dat"), new ClassReference.Factory(), discoveredClasses);
         DataLoader.saveData(Paths.get("methods.dat"), new MethodReference.Factory(), discoveredMethods);
+        DataLoader.saveData(Paths.get("methodcalls.dat"), new MethodCalls.Factory(), discoveredCalls);
 
         Map<ClassReference.Handle, ClassReference> classMap = new HashMap<>();
         for (ClassReference clazz : discoveredClasses) {
             classMap.put(clazz.getHandle(), clazz);
         }
-        InheritanceDeriver.derive(classMap).save();
+        InheritanceDeriver.derive(classMap, parallelism).save();
+    }
+
+    /**
+     * Adds the classes and methods of a JDK snapshot. Call this before {@link #discover(ClassResourceEnumerator)} so
+     * that runtime classes keep their place ahead of the classpath.
+     */
+    public void link(JdkSnapshot jdkSnapshot) throws IOException {
+        discoveredClasses.addAll(jdkSnapshot.loadClasses());
+        discoveredMethods.addAll(jdkSnapshot.loadMethods());
+        discoveredCalls.addAll(jdkSnapshot.loadMethodCalls());
     }
 
     public void discover(final ClassResourceEnumerator classResourceEnumerator) throws Exception {
-        for (ClassResourceEnumerator.ClassResource classResource : classResourceEnumerator.getAllClasses()) {
-            try (InputStream in = classResource.getInputStream()) {
-                ClassReader cr = new ClassReader(in);
+        discoverMethods(new ArrayList<>(classResourceEnumerator.getAllClasses()));
+
+        // Out of scope supertypes only contribute their class records, so only their headers and fields are read
+        for (ClassResourceEnumerator.ClassResource classResource : classResourceEnumerator.getHierarchyOnlyClasses()) {
+            ClassReader cr = classResource.getClassReader();
+            try {
+                cr.accept(new MethodDiscoveryClassVisitor(discoveredClasses, null, null),
+                        ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+            } catch (Exception e) {
+                LOGGER.error("Exception analyzing: " + classResource.getName(), e);
+            }
+        }
+    }
+
+    private void discoverMethods(final List<ClassResourceEnumerator.ClassResource> classResources) throws Exception {
+        if (parallelism == 1) {
+            discover(classResources, discoveredClasses, discoveredMethods, discoveredCalls);
+            return;
+        }
+
+        // Each worker parses a contiguous chunk of classes into its own buffers. Buffers are merged in chunk order,
+        // so the discovered classes and methods come out in exactly the same order as a serial run.
+        LOGGER.debug("Discovering methods in " + classResources.size() + " classes using " + parallelism + " threads...");
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Future<DiscoveryBuffer>> futures = new ArrayList<>();
+            for (int start = 0; start < classResources.size(); start += CHUNK_SIZE) {
+                final List<ClassResourceEnumerator.ClassResource> chunk =
+                        classResources.subList(start, Math.min(start + CHUNK_SIZE, classResources.size()));
+                futures.add(executor.submit(() -> {
+                    DiscoveryBuffer buffer = new DiscoveryBuffer();
+                    discover(chunk, buffer.classes, buffer.methods, buffer.calls);
+                    return buffer;
+                }));
+            }
+
+            for (Future<DiscoveryBuffer> future : futures) {
+                DiscoveryBuffer buffer;
                 try {
-                    cr.accept(new MethodDiscoveryClassVisitor(), ClassReader.EXPAND_FRAMES);
-                } catch (Exception e) {
-                    LOGGER.error("Exception analyzing: " + classResource.getName(), e);
+                    buffer = future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
                 }
+                discoveredClasses.addAll(buffer.classes);
+                discoveredMethods.addAll(buffer.methods);
+                discoveredCalls.addAll(buffer.calls);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void discover(List<ClassResourceEnumerator.ClassResource> classResources,
+                                 List<ClassReference> classes, List<MethodReference> methods,
+                                 List<MethodCalls> calls) throws IOException {
+        for (ClassResourceEnumerator.ClassResource classResource : classResources) {
+            ClassReader cr = classResource.getClassReader();
+            try {
+                // Only invoked methods are collected from method bodies, so neither frames nor debug info are needed
+                cr.accept(new MethodDiscoveryClassVisitor(classes, methods, calls),
+                        ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+            } catch (Exception e) {
+                LOGGER.error("Exception analyzing: " + classResource.getName(), e);
             }
         }
     }
 
-    private class MethodDiscoveryClassVisitor extends ClassVisitor {
+    private static class DiscoveryBuffer {
+        private final List<ClassReference> classes = new ArrayList<>();
+        private final List<MethodReference> methods = new ArrayList<>();
+        private final List<MethodCalls> calls = new ArrayList<>();
+    }
+
+    private static class MethodDiscoveryClassVisitor extends ClassVisitor {
+
+        private final List<ClassReference> discoveredClasses;
+        private final List<MethodReference> discoveredMethods;
+        private final List<MethodCalls> discoveredCalls;
 
         private String name;
         private String superName;
@@ -57,8 +167,17 @@ public class MethodDiscovery {
         private List<ClassReference.Member> members;
         private ClassReference.Handle classHandle;
 
-        private MethodDiscoveryClassVisitor() throws SQLException {
+        /**
+         * @param discoveredMethods List to add the methods of the class to, or null to skip methods entirely
+         * @param discoveredCalls List to add the calls made by those methods to, or null along with discoveredMethods
+         */
+        private MethodDiscoveryClassVisitor(List<ClassReference> discoveredClasses,
+                                            List<MethodReference> discoveredMethods,
+                                            List<MethodCalls> discoveredCalls) {
             super(Opcodes.ASM6);
+            this.discoveredClasses = discoveredClasses;
+            this.discoveredMethods = discoveredMethods;
+            this.discoveredCalls = discoveredCalls;
         }
 
         @Override
@@ -69,7 +188,7 @@ public class MethodDiscovery {
             this.interfaces = interfaces;
             this.isInterface = (access & Opcodes.ACC_INTERFACE) != 0;
             this.members = new ArrayList<>();
-            this.classHandle = new ClassReference.Handle(name);
+            this.classHandle = ClassReference.Handle.of(name);
 
             super.visit(version, access, name, signature, superName, interfaces);
         }
@@ -84,20 +203,25 @@ public class MethodDiscovery {
                 } else {
                     typeName = type.getDescriptor();
                 }
-                members.add(new ClassReference.Member(name, access, new ClassReference.Handle(typeName)));
+                members.add(new ClassReference.Member(name, access, ClassReference.Handle.of(typeName)));
             }
             return super.visitField(access, name, desc, signature, value);
         }
 
         @Override
         public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+            if (discoveredMethods == null) {
+                return null;
+            }
             boolean isStatic = (access & Opcodes.ACC_STATIC) != 0;
             discoveredMethods.add(new MethodReference(
                     classHandle,
                     name,
                     desc,
                     isStatic));
-            return super.visitMethod(access, name, desc, signature, exceptions);
+            MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+            return new MethodCallDiscoveryMethodVisitor(api, mv, MethodReference.Handle.of(classHandle, name, desc),
+                    discoveredCalls);
         }
 
         @Override
@@ -115,11 +239,37 @@ public class MethodDiscovery {
 
     }
 
+    private static class MethodCallDiscoveryMethodVisitor extends MethodVisitor {
+        private final MethodReference.Handle method;
+        private final List<MethodCalls> discoveredCalls;
+        private final Set<MethodReference.Handle> calledMethods = new LinkedHashSet<>();
+
+        private MethodCallDiscoveryMethodVisitor(int api, MethodVisitor mv, MethodReference.Handle method,
+                                                 List<MethodCalls> discoveredCalls) {
+            super(api, mv);
+            this.method = method;
+            this.discoveredCalls = discoveredCalls;
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+            calledMethods.add(MethodReference.Handle.of(ClassReference.Handle.of(owner), name, desc));
+            super.visitMethodInsn(opcode, owner, name, desc, itf);
+        }
+
+        @Override
+        public void visitEnd() {
+            discoveredCalls.add(new MethodCalls(method, new ArrayList<>(calledMethods)));
+            super.visitEnd();
+        }
+    }
+
     public static void main(String[] args) throws Exception {
-        ClassLoader classLoader = Util.getWarClassLoader(Paths.get(args[0]));
+        ClassResourceEnumerator classResourceEnumerator = new ClassResourceEnumerator(
+                Collections.singletonList(Paths.get(args[0])), Runtime.getRuntime().availableProcessors());
 
         MethodDiscovery methodDiscovery = new MethodDiscovery();
-        methodDiscovery.discover(new ClassResourceEnumerator(classLoader));
+        methodDiscovery.discover(classResourceEnumerator);
         methodDiscovery.save();
     }
 }
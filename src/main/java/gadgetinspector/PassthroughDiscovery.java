@@ -4,313 +4,613 @@ import gadgetinspector.config.GIConfig;
 import gadgetinspector.config.JavaDeserializationConfig;
 import gadgetinspector.data.*;
 import org.objectweb.asm.*;
-import org.objectweb.asm.commons.JSRInlinerAdapter;
+import org.objectweb.asm.tree.MethodNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PassthroughDiscovery {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PassthroughDiscovery.class);
+    // The methods of a class are spread over many levels; keep the bodies of this many classes decoded
+    private static final int METHOD_BODY_CACHE_CLASSES = 2048;
+
+    private final int parallelism;
+    private final PassthroughModels passthroughModels;
+    private final PassthroughSummaries linkedPassthroughDataflow = new PassthroughSummaries();
+    private PassthroughSummaries passthroughDataflow;
+    private CallGraphDiscovery callGraphDiscovery;
+    private MethodBudget methodBudget = new MethodBudget();
+
+    /**
+     * @param parallelism Number of worker threads used to analyze independent methods concurrently
+     * @param passthroughModels Models used as the summaries of the methods they cover, instead of analyzing them
+     */
+    public PassthroughDiscovery(int parallelism, PassthroughModels passthroughModels) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        this.passthroughModels = passthroughModels;
+    }
 
-    private final Map<MethodReference.Handle, Set<MethodReference.Handle>> methodCalls = new HashMap<>();
-    private Map<MethodReference.Handle, Set<Integer>> passthroughDataflow;
+    /**
+     * Seeds the analysis with the passthrough dataflow of a JDK snapshot, whose methods are then not analyzed again.
+     */
+    public void link(JdkSnapshot jdkSnapshot) throws IOException {
+        linkedPassthroughDataflow.addAll(jdkSnapshot.loadPassthroughDataflow());
+    }
+
+    /**
+     * Also discovers the calls of each method body for the given call graph discovery, right after the passthrough
+     * dataflow of the methods it calls is complete, so that every body is decoded once for both stages. Bodies already
+     * analyzed for their passthrough dataflow are not checked against their frames again. Saving the call graph is left
+     * to the caller.
+     */
+    public void setCallGraphDiscovery(CallGraphDiscovery callGraphDiscovery) {
+        this.callGraphDiscovery = callGraphDiscovery;
+    }
+
+    /**
+     * Sets the budget of each method's analysis, and where the methods cut short are recorded.
+     */
+    public void setMethodBudget(MethodBudget methodBudget) {
+        this.methodBudget = methodBudget;
+    }
 
     public void discover(final ClassResourceEnumerator classResourceEnumerator, final GIConfig config) throws IOException {
         Map<MethodReference.Handle, MethodReference> methodMap = DataLoader.loadMethods();
         Map<ClassReference.Handle, ClassReference> classMap = DataLoader.loadClasses();
         InheritanceMap inheritanceMap = InheritanceMap.load();
 
-        Map<String, ClassResourceEnumerator.ClassResource> classResourceByName = discoverMethodCalls(classResourceEnumerator);
-        List<MethodReference.Handle> sortedMethods = topologicallySortMethodCalls();
-        passthroughDataflow = calculatePassthroughDataflow(classResourceByName, classMap, inheritanceMap, sortedMethods,
-                config.getSerializableDecider(methodMap, inheritanceMap));
-    }
+        List<MethodCalls> methodCalls = DataLoader.loadData(Paths.get("methodcalls.dat"), new MethodCalls.Factory());
+        CompactCallGraph callGraph = CompactCallGraph.fromMethodCalls(methodCalls);
+        List<List<int[]>> levels = condenseMethodCalls(callGraph, methodCalls);
 
-    private Map<String, ClassResourceEnumerator.ClassResource> discoverMethodCalls(final ClassResourceEnumerator classResourceEnumerator) throws IOException {
-        Map<String, ClassResourceEnumerator.ClassResource> classResourcesByName = new HashMap<>();
-        for (ClassResourceEnumerator.ClassResource classResource : classResourceEnumerator.getAllClasses()) {
-            try (InputStream in = classResource.getInputStream()) {
-                ClassReader cr = new ClassReader(in);
-                try {
-                    MethodCallDiscoveryClassVisitor visitor = new MethodCallDiscoveryClassVisitor(Opcodes.ASM6);
-                    cr.accept(visitor, ClassReader.EXPAND_FRAMES);
-                    classResourcesByName.put(visitor.getName(), classResource);
-                } catch (Exception e) {
-                    LOGGER.error("Error analyzing: " + classResource.getName(), e);
-                }
-            }
-        }
-        return classResourcesByName;
+        PassthroughAnalysis analysis = new PassthroughAnalysis(classResourceEnumerator, classMap, inheritanceMap,
+                config.getSerializableDecider(methodMap, inheritanceMap), passthroughModels, linkedPassthroughDataflow,
+                callGraphDiscovery, methodBudget);
+        analysis.run(callGraph, levels, parallelism);
+        passthroughDataflow = analysis.getPassthroughDataflow();
     }
 
-    private List<MethodReference.Handle> topologicallySortMethodCalls() {
-        Map<MethodReference.Handle, Set<MethodReference.Handle>> outgoingReferences = new HashMap<>();
-        for (Map.Entry<MethodReference.Handle, Set<MethodReference.Handle>> entry : methodCalls.entrySet()) {
-            MethodReference.Handle method = entry.getKey();
-            outgoingReferences.put(method, new HashSet<>(entry.getValue()));
-        }
+    /**
+     * Condenses the calls made by each method, as found by {@link MethodDiscovery}, into strongly connected components
+     * with Tarjan's algorithm, run on an explicit stack. Only methods with a known body are included. Components are
+     * grouped by level: a component's level is one more than the highest level of the components it calls, so the
+     * components of a level only depend on lower levels and can be analyzed independently of each other.
+     *
+     * @return The methods of each component, by level
+     */
+    private static List<List<int[]>> condenseMethodCalls(CompactCallGraph callGraph, List<MethodCalls> methodCalls) {
+        LOGGER.debug("Condensing method calls...");
+        int methodCount = callGraph.getMethodCount();
+        int[] visitIndexes = new int[methodCount];
+        int[] lowLinks = new int[methodCount];
+        int[] componentLevels = new int[methodCount];
+        Arrays.fill(visitIndexes, -1);
+        Arrays.fill(componentLevels, -1);
+        int nextVisitIndex = 0;
+
+        // Explicit stack of the nodes on the current path, and of the next edge to follow from each of them
+        int[] pathNodes = new int[methodCount];
+        int[] pathEdges = new int[methodCount];
+        // Nodes visited but not yet assigned to a component
+        int[] openNodes = new int[methodCount];
+        int openCount = 0;
+        BitSet isOpen = new BitSet();
+
+        List<List<int[]>> levels = new ArrayList<>();
+        int componentCount = 0;
+        for (MethodCalls calls : methodCalls) {
+            int root = calls.getCallerMethod().getId();
+            if (visitIndexes[root] != -1) {
+                continue;
+            }
 
-        // Topological sort methods
-        LOGGER.debug("Performing topological sort...");
-        Set<MethodReference.Handle> dfsStack = new HashSet<>();
-        Set<MethodReference.Handle> visitedNodes = new HashSet<>();
-        List<MethodReference.Handle> sortedMethods = new ArrayList<>(outgoingReferences.size());
-        for (MethodReference.Handle root : outgoingReferences.keySet()) {
-            dfsTsort(outgoingReferences, sortedMethods, visitedNodes, dfsStack, root);
-        }
-        LOGGER.debug(String.format("Outgoing references %d, sortedMethods %d", outgoingReferences.size(), sortedMethods.size()));
+            int depth = 0;
+            visitIndexes[root] = lowLinks[root] = nextVisitIndex++;
+            openNodes[openCount++] = root;
+            isOpen.set(root);
+            pathNodes[depth] = root;
+            pathEdges[depth] = callGraph.getEdgeStart(root);
+            depth += 1;
+            while (depth > 0) {
+                int node = pathNodes[depth - 1];
+                if (pathEdges[depth - 1] < callGraph.getEdgeEnd(node)) {
+                    int child = callGraph.getTarget(pathEdges[depth - 1]++);
+                    if (!callGraph.isCaller(child)) {
+                        continue;
+                    }
+                    if (visitIndexes[child] == -1) {
+                        visitIndexes[child] = lowLinks[child] = nextVisitIndex++;
+                        openNodes[openCount++] = child;
+                        isOpen.set(child);
+                        pathNodes[depth] = child;
+                        pathEdges[depth] = callGraph.getEdgeStart(child);
+                        depth += 1;
+                    } else if (isOpen.get(child)) {
+                        lowLinks[node] = Math.min(lowLinks[node], visitIndexes[child]);
+                    }
+                    continue;
+                }
 
-        return sortedMethods;
-    }
+                depth -= 1;
+                if (depth > 0) {
+                    int parent = pathNodes[depth - 1];
+                    lowLinks[parent] = Math.min(lowLinks[parent], lowLinks[node]);
+                }
+                if (lowLinks[node] != visitIndexes[node]) {
+                    continue;
+                }
 
-    private static Map<MethodReference.Handle, Set<Integer>> calculatePassthroughDataflow(Map<String, ClassResourceEnumerator.ClassResource> classResourceByName,
-                                                                                          Map<ClassReference.Handle, ClassReference> classMap,
-                                                                                          InheritanceMap inheritanceMap,
-                                                                                          List<MethodReference.Handle> sortedMethods,
-                                                                                          SerializableDecider serializableDecider) throws IOException {
-        final Map<MethodReference.Handle, Set<Integer>> passthroughDataflow = new HashMap<>();
-        for (MethodReference.Handle method : sortedMethods) {
-            if (method.getName().equals("<clinit>")) {
-                continue;
-            }
-            ClassResourceEnumerator.ClassResource classResource = classResourceByName.get(method.getClassReference().getName());
-            try (InputStream inputStream = classResource.getInputStream()) {
-                ClassReader cr = new ClassReader(inputStream);
-                try {
-                    PassthroughDataflowClassVisitor cv = new PassthroughDataflowClassVisitor(classMap, inheritanceMap,
-                            passthroughDataflow, serializableDecider, Opcodes.ASM6, method);
-                    cr.accept(cv, ClassReader.EXPAND_FRAMES);
-                    // 访问完XRETURN指令之后方法也就执行完毕，调用getReturnTaint()方法获取污点分析的结果，以对应的方法为键，缓存到passthroughDataflow里面
-                    passthroughDataflow.put(method, cv.getReturnTaint());
-                } catch (Exception e) {
-                    LOGGER.error("Exception analyzing " + method.getClassReference().getName(), e);
+                // The node is the root of a component made of itself and the open nodes above it
+                int componentStart = openCount;
+                do {
+                    componentStart -= 1;
+                    isOpen.clear(openNodes[componentStart]);
+                } while (openNodes[componentStart] != node);
+                int[] component = Arrays.copyOfRange(openNodes, componentStart, openCount);
+                openCount = componentStart;
+
+                // Every component called from this one has been completed before it
+                int level = 0;
+                for (int member : component) {
+                    for (int edge = callGraph.getEdgeStart(member); edge < callGraph.getEdgeEnd(member); edge++) {
+                        int calleeLevel = componentLevels[callGraph.getTarget(edge)];
+                        if (calleeLevel >= level) {
+                            level = calleeLevel + 1;
+                        }
+                    }
                 }
-            } catch (IOException e) {
-                LOGGER.error("Unable to analyze " + method.getClassReference().getName(), e);
+                for (int member : component) {
+                    componentLevels[member] = level;
+                }
+                while (levels.size() <= level) {
+                    levels.add(new ArrayList<>());
+                }
+                levels.get(level).add(component);
+                componentCount += 1;
             }
         }
-        return passthroughDataflow;
-    }
-
-    private class MethodCallDiscoveryClassVisitor extends ClassVisitor {
-        public MethodCallDiscoveryClassVisitor(int api) {
-            super(api);
+        // Components of a level may run in any order; grouping them by class lets each class be decoded once per level
+        for (List<int[]> level : levels) {
+            level.sort(Comparator.comparingInt((int[] component) ->
+                    SymbolTable.getMethodHandle(component[0]).getClassReference().getId())
+                    .thenComparingInt(component -> component[0]));
         }
+        LOGGER.debug(String.format("Outgoing references %d, components %d, levels %d", methodCalls.size(),
+                componentCount, levels.size()));
 
-        private String name = null;
+        return levels;
+    }
 
-        @Override
-        public void visit(int version, int access, String name, String signature,
-                          String superName, String[] interfaces) {
-            super.visit(version, access, name, signature, superName, interfaces);
-            if (this.name != null) {
-                throw new IllegalStateException("ClassVisitor already visited a class!");
-            }
-            this.name = name;
+    /**
+     * Computes the passthrough dataflow of methods component by component, level by level. The components of a level
+     * are analyzed concurrently. Within a component with a cycle of calls, a worklist over the calls between its
+     * methods analyzes a method again whenever a method it calls has grown its summary, until no summary changes, so
+     * recursive calls see complete summaries. Once a component is done, its bodies are passed on to call graph
+     * discovery, if any.
+     */
+    private static class PassthroughAnalysis {
+        private final ClassResourceEnumerator classResourceEnumerator;
+        private final Map<ClassReference.Handle, ClassReference> classMap;
+        private final InheritanceMap inheritanceMap;
+        private final SerializableDecider serializableDecider;
+        private final PassthroughModels passthroughModels;
+        private final PassthroughSummaries linkedPassthroughDataflow;
+        private final PassthroughSummaries passthroughDataflow = new PassthroughSummaries();
+        private final CallGraphDiscovery callGraphDiscovery;
+        private final MethodBudget methodBudget;
+        private MethodBodyCache methodBodies;
+        private final AtomicInteger recursiveComponents = new AtomicInteger();
+        private final AtomicLong recursiveAnalyses = new AtomicLong();
+        // Callers which did not have to be analyzed again, because the summary of a method they call did not grow
+        private final AtomicLong skippedReanalyses = new AtomicLong();
+        private final Map<String, Integer> classFirstUse = new HashMap<>();
+        private ClassPrefetcher prefetcher;
+
+        private PassthroughAnalysis(ClassResourceEnumerator classResourceEnumerator,
+                                    Map<ClassReference.Handle, ClassReference> classMap,
+                                    InheritanceMap inheritanceMap, SerializableDecider serializableDecider,
+                                    PassthroughModels passthroughModels,
+                                    PassthroughSummaries linkedPassthroughDataflow,
+                                    CallGraphDiscovery callGraphDiscovery, MethodBudget methodBudget) {
+            this.classResourceEnumerator = classResourceEnumerator;
+            this.classMap = classMap;
+            this.inheritanceMap = inheritanceMap;
+            this.serializableDecider = serializableDecider;
+            this.passthroughModels = passthroughModels;
+            this.linkedPassthroughDataflow = linkedPassthroughDataflow;
+            this.callGraphDiscovery = callGraphDiscovery;
+            this.methodBudget = methodBudget;
+            this.passthroughDataflow.addAll(linkedPassthroughDataflow);
+            this.passthroughDataflow.addAll(passthroughModels.getSummaries());
         }
 
-        public String getName() {
-            return name;
+        /**
+         * @return Whether the method's body is analyzed, rather than its summary coming from a snapshot or a model
+         */
+        private boolean isAnalyzed(MethodReference.Handle method) {
+            return !method.getName().equals("<clinit>") && !linkedPassthroughDataflow.contains(method)
+                    && !passthroughModels.isModelled(method);
         }
 
-        @Override
-        public MethodVisitor visitMethod(int access, String name, String desc,
-                                         String signature, String[] exceptions) {
-            MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
-            MethodCallDiscoveryMethodVisitor modelGeneratorMethodVisitor = new MethodCallDiscoveryMethodVisitor(
-                    api, mv, this.name, name, desc);
-
-            return new JSRInlinerAdapter(modelGeneratorMethodVisitor, access, name, desc, signature, exceptions);
+        /**
+         * @return Whether the method's body is needed, for its passthrough dataflow or for its calls. A static
+         * initializer has no arguments to taint its calls.
+         */
+        private boolean isVisited(MethodReference.Handle method) {
+            return isAnalyzed(method) || callGraphDiscovery != null && !method.getName().equals("<clinit>");
         }
 
-        @Override
-        public void visitEnd() {
-            super.visitEnd();
+        private void run(CompactCallGraph callGraph, List<List<int[]>> levels, int parallelism) throws IOException {
+            // Classes are resolved by name as their methods come up. With a bounded class cache, they are also loaded
+            // ahead of time in the order the levels first need them.
+            boolean prefetch = classResourceEnumerator.hasBoundedClassCache();
+            List<ClassResourceEnumerator.ClassResource> classOrder = new ArrayList<>();
+            BitSet visitedMethods = new BitSet();
+            Map<String, Integer> classLastUse = new HashMap<>();
+            for (int levelIndex = 0; levelIndex < levels.size(); levelIndex++) {
+                for (int[] component : levels.get(levelIndex)) {
+                    for (int method : component) {
+                        MethodReference.Handle methodHandle = SymbolTable.getMethodHandle(method);
+                        if (!isVisited(methodHandle)) {
+                            continue;
+                        }
+                        visitedMethods.set(method);
+                        String className = methodHandle.getClassReference().getName();
+                        classLastUse.put(className, levelIndex);
+                        if (prefetch && !classFirstUse.containsKey(className)) {
+                            ClassResourceEnumerator.ClassResource classResource = classResourceEnumerator.getClassResource(className);
+                            if (classResource != null) {
+                                classFirstUse.put(className, classOrder.size());
+                                classOrder.add(classResource);
+                            }
+                        }
+                    }
+                }
+            }
+            // A class is decoded with the bodies of its visited methods not taken yet, which are then taken level by
+            // level. The cache is bounded, so a class may have to be decoded again for a later level; whatever it
+            // still holds after the last level using it is released right away rather than waiting to be pushed out.
+            List<List<String>> classesDoneAfterLevel = new ArrayList<>(levels.size());
+            for (int i = 0; i < levels.size(); i++) {
+                classesDoneAfterLevel.add(new ArrayList<>());
+            }
+            for (Map.Entry<String, Integer> entry : classLastUse.entrySet()) {
+                classesDoneAfterLevel.get(entry.getValue()).add(entry.getKey());
+            }
+            methodBodies = new MethodBodyCache(METHOD_BODY_CACHE_CLASSES, visitedMethods);
+
+            LOGGER.debug("Analyzing " + levels.size() + " levels of method components using " + parallelism + " threads...");
+            ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+            try (ClassPrefetcher prefetcher = new ClassPrefetcher(classOrder)) {
+                this.prefetcher = prefetcher;
+                for (int levelIndex = 0; levelIndex < levels.size(); levelIndex++) {
+                    analyzeLevel(callGraph, levels.get(levelIndex), pool, parallelism);
+                    methodBodies.evict(classesDoneAfterLevel.get(levelIndex));
+                }
+            } finally {
+                if (pool != null) {
+                    pool.shutdownNow();
+                }
+            }
+            LOGGER.debug(String.format("Decoded %d classes for %d method bodies, holding at most %d classes",
+                    methodBodies.getDecodedClasses(), methodBodies.getTakenBodies(), methodBodies.getPeakClasses()));
+            LOGGER.debug(String.format("Analyzed %d recursive components with %d method analyses, skipping %d caller reanalyses",
+                    recursiveComponents.get(), recursiveAnalyses.get(), skippedReanalyses.get()));
         }
-    }
-
-    private class MethodCallDiscoveryMethodVisitor extends MethodVisitor {
-        private final Set<MethodReference.Handle> calledMethods;
 
-        public MethodCallDiscoveryMethodVisitor(final int api, final MethodVisitor mv,
-                                           final String owner, String name, String desc) {
-            super(api, mv);
+        private void analyzeLevel(CompactCallGraph callGraph, List<int[]> level, ForkJoinPool pool, int parallelism)
+                throws IOException {
+            if (pool == null || level.size() == 1) {
+                for (int[] component : level) {
+                    analyzeComponent(callGraph, component);
+                }
+                return;
+            }
 
-            this.calledMethods = new HashSet<>();
-            methodCalls.put(new MethodReference.Handle(new ClassReference.Handle(owner), name, desc), calledMethods);
+            int chunkSize = Math.max(1, level.size() / (parallelism * 4));
+            List<Callable<Void>> chunks = new ArrayList<>();
+            for (int start = 0; start < level.size(); start += chunkSize) {
+                List<int[]> chunk = level.subList(start, Math.min(start + chunkSize, level.size()));
+                chunks.add(() -> {
+                    for (int[] component : chunk) {
+                        analyzeComponent(callGraph, component);
+                    }
+                    return null;
+                });
+            }
+            for (Future<Void> future : pool.invokeAll(chunks)) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
         }
 
-        @Override
-        public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
-            calledMethods.add(new MethodReference.Handle(new ClassReference.Handle(owner), name, desc));
-            super.visitMethodInsn(opcode, owner, name, desc, itf);
+        private PassthroughSummaries getPassthroughDataflow() {
+            return passthroughDataflow;
         }
-    }
 
-    public void save() throws IOException {
-        if (passthroughDataflow == null) {
-            throw new IllegalStateException("Save called before discover()");
-        }
+        private void analyzeComponent(CompactCallGraph callGraph, int[] component) throws IOException {
+            List<MethodReference.Handle> methods = new ArrayList<>(component.length);
+            List<MethodNode> methodNodes = new ArrayList<>(component.length);
+            // Bodies only visited for their calls
+            List<MethodReference.Handle> unanalyzedMethods = new ArrayList<>();
+            List<MethodNode> unanalyzedMethodNodes = new ArrayList<>();
+            for (int id : component) {
+                MethodReference.Handle method = SymbolTable.getMethodHandle(id);
+                if (!isVisited(method)) {
+                    continue;
+                }
+                String className = method.getClassReference().getName();
+                Integer classIndex = classFirstUse.get(className);
+                if (classIndex != null) {
+                    prefetcher.reached(classIndex);
+                }
+                ClassResourceEnumerator.ClassResource classResource = classResourceEnumerator.getClassResource(className);
+                if (classResource == null) {
+                    // Linked from a JDK snapshot; methods with an empty summary are not stored in the snapshot
+                    continue;
+                }
+                try {
+                    MethodNode methodNode = methodBodies.take(classResource, method);
+                    if (methodNode == null) {
+                        LOGGER.error("Exception analyzing " + className,
+                                new IllegalStateException("No method " + method.getName() + method.getDesc() + " in class"));
+                        continue;
+                    }
+                    if (isAnalyzed(method)) {
+                        methods.add(method);
+                        methodNodes.add(methodNode);
+                    } else {
+                        unanalyzedMethods.add(method);
+                        unanalyzedMethodNodes.add(methodNode);
+                    }
+                } catch (IOException e) {
+                    LOGGER.error("Unable to analyze " + className, e);
+                }
+            }
 
-        DataLoader.saveData(Paths.get("passthrough.dat"), new PassThroughFactory(), passthroughDataflow.entrySet());
-    }
+            // The methods whose bodies have been analyzed without error, and so agree with their frames
+            BitSet checkedMethods = new BitSet();
+            if (!isRecursive(callGraph, component)) {
+                for (int i = 0; i < methods.size(); i++) {
+                    BitSet returnTaint = calculatePassthroughDataflow(methods.get(i), methodNodes.get(i), true);
+                    if (returnTaint != null) {
+                        passthroughDataflow.addArgs(methods.get(i), returnTaint);
+                        checkedMethods.set(i);
+                    }
+                }
+            } else {
+                analyzeRecursiveComponent(callGraph, methods, methodNodes, checkedMethods);
+            }
 
-    public static Map<MethodReference.Handle, Set<Integer>> load() throws IOException {
-        Map<MethodReference.Handle, Set<Integer>> passthroughDataflow = new HashMap<>();
-        for (Map.Entry<MethodReference.Handle, Set<Integer>> entry : DataLoader.loadData(Paths.get("passthrough.dat"), new PassThroughFactory())) {
-            passthroughDataflow.put(entry.getKey(), entry.getValue());
+            // Every method the component calls now has its complete summary
+            if (callGraphDiscovery != null) {
+                for (int i = 0; i < methods.size(); i++) {
+                    callGraphDiscovery.discover(methods.get(i), methodNodes.get(i), classMap, inheritanceMap,
+                            passthroughDataflow, serializableDecider, !checkedMethods.get(i));
+                }
+                for (int i = 0; i < unanalyzedMethods.size(); i++) {
+                    callGraphDiscovery.discover(unanalyzedMethods.get(i), unanalyzedMethodNodes.get(i), classMap,
+                            inheritanceMap, passthroughDataflow, serializableDecider, true);
+                }
+            }
         }
-        return passthroughDataflow;
-    }
 
-    public static class PassThroughFactory implements DataFactory<Map.Entry<MethodReference.Handle, Set<Integer>>> {
+        private void analyzeRecursiveComponent(CompactCallGraph callGraph, List<MethodReference.Handle> methods,
+                                               List<MethodNode> methodNodes, BitSet checkedMethods) {
+            recursiveComponents.incrementAndGet();
 
-        @Override
-        public Map.Entry<MethodReference.Handle, Set<Integer>> parse(String[] fields) {
-            ClassReference.Handle clazz = new ClassReference.Handle(fields[0]);
-            MethodReference.Handle method = new MethodReference.Handle(clazz, fields[1], fields[2]);
-
-            Set<Integer> passthroughArgs = new HashSet<>();
-            for (String arg : fields[3].split(",")) {
-                if (arg.length() > 0) {
-                    passthroughArgs.add(Integer.parseInt(arg));
+            // Within the component, which methods call each method
+            Map<Integer, Integer> memberIndexes = new HashMap<>();
+            for (int i = 0; i < methods.size(); i++) {
+                memberIndexes.put(methods.get(i).getId(), i);
+            }
+            List<List<Integer>> callers = new ArrayList<>(methods.size());
+            for (int i = 0; i < methods.size(); i++) {
+                callers.add(new ArrayList<>());
+            }
+            for (int i = 0; i < methods.size(); i++) {
+                int caller = methods.get(i).getId();
+                for (int edge = callGraph.getEdgeStart(caller); edge < callGraph.getEdgeEnd(caller); edge++) {
+                    Integer callee = memberIndexes.get(callGraph.getTarget(edge));
+                    if (callee != null && !callers.get(callee).contains(i)) {
+                        callers.get(callee).add(i);
+                    }
                 }
             }
-            return new AbstractMap.SimpleEntry<>(method, passthroughArgs);
-        }
 
-        @Override
-        public String[] serialize(Map.Entry<MethodReference.Handle, Set<Integer>> entry) {
-            if (entry.getValue().size() == 0) {
-                return null;
+            // A method is analyzed again only once a method it calls has a grown summary. Summaries only ever grow,
+            // so this terminates once no method of the component learns anything new. The component's members were
+            // opened depth first, so starting from the last ones analyzes callees before their callers.
+            Deque<Integer> worklist = new ArrayDeque<>();
+            BitSet queued = new BitSet();
+            for (int i = methods.size() - 1; i >= 0; i--) {
+                worklist.add(i);
+                queued.set(i);
             }
-
-            final String[] fields = new String[4];
-            fields[0] = entry.getKey().getClassReference().getName();
-            fields[1] = entry.getKey().getName();
-            fields[2] = entry.getKey().getDesc();
-
-            StringBuilder sb = new StringBuilder();
-            for (Integer arg : entry.getValue()) {
-                sb.append(Integer.toString(arg));
-                sb.append(",");
+            while (!worklist.isEmpty()) {
+                int i = worklist.remove();
+                queued.clear(i);
+                BitSet returnTaint = calculatePassthroughDataflow(methods.get(i), methodNodes.get(i),
+                        !checkedMethods.get(i));
+                recursiveAnalyses.incrementAndGet();
+                if (returnTaint != null) {
+                    checkedMethods.set(i);
+                }
+                if (returnTaint == null || !passthroughDataflow.addArgs(methods.get(i), returnTaint)) {
+                    skippedReanalyses.addAndGet(callers.get(i).size());
+                    continue;
+                }
+                for (int caller : callers.get(i)) {
+                    if (!queued.get(caller)) {
+                        worklist.add(caller);
+                        queued.set(caller);
+                    }
+                }
             }
-            fields[3] = sb.toString();
-
-            return fields;
         }
-    }
 
-    private static void dfsTsort(Map<MethodReference.Handle, Set<MethodReference.Handle>> outgoingReferences,
-                                    List<MethodReference.Handle> sortedMethods, Set<MethodReference.Handle> visitedNodes,
-                                    Set<MethodReference.Handle> stack, MethodReference.Handle node) {
-
-        if (stack.contains(node)) {
-            return;
-        }
-        if (visitedNodes.contains(node)) {
-            return;
+        private static boolean isRecursive(CompactCallGraph callGraph, int[] component) {
+            if (component.length > 1) {
+                return true;
+            }
+            for (int edge = callGraph.getEdgeStart(component[0]); edge < callGraph.getEdgeEnd(component[0]); edge++) {
+                if (callGraph.getTarget(edge) == component[0]) {
+                    return true;
+                }
+            }
+            return false;
         }
-        Set<MethodReference.Handle> outgoingRefs = outgoingReferences.get(node);
-        if (outgoingRefs == null) {
-            return;
+
+        /**
+         * @return The arguments the method's return value is tainted by, or null if the method could not be analyzed
+         */
+        private BitSet calculatePassthroughDataflow(MethodReference.Handle method, MethodNode methodNode,
+                                                    boolean checkFrames) {
+            if (methodBudget.isTruncated(method)) {
+                // Already as conservative as it gets; analyzing it again would only exceed the budget again
+                return getConservativeReturnTaint(methodNode);
+            }
+            try {
+                PassthroughDataflowMethodVisitor mv = new PassthroughDataflowMethodVisitor(classMap, inheritanceMap,
+                        passthroughDataflow, serializableDecider, Opcodes.ASM6, null,
+                        method.getClassReference().getName(), methodNode.access, methodNode.name, methodNode.desc,
+                        methodNode.signature, methodNode.exceptions.toArray(new String[0]), checkFrames, methodBudget);
+                methodNode.accept(mv);
+                // 访问完XRETURN指令之后方法也就执行完毕，调用getReturnTaint()方法获取污点分析的结果
+                return mv.returnTaint;
+            } catch (MethodBudget.ExceededException e) {
+                methodBudget.truncated("passthrough", method, e);
+                return getConservativeReturnTaint(methodNode);
+            } catch (Exception e) {
+                LOGGER.error("Exception analyzing " + method.getClassReference().getName(), e);
+                return null;
+            }
         }
 
-        stack.add(node);
-        for (MethodReference.Handle child : outgoingRefs) {
-            dfsTsort(outgoingReferences, sortedMethods, visitedNodes, stack, child);
+        /**
+         * @return The summary of a method whose analysis was cut short: any of its arguments may taint its return value
+         */
+        private static BitSet getConservativeReturnTaint(MethodNode methodNode) {
+            BitSet returnTaint = new BitSet();
+            if (Type.getReturnType(methodNode.desc).getSort() != Type.VOID) {
+                returnTaint.set(0, Type.getArgumentTypes(methodNode.desc).length
+                        + ((methodNode.access & Opcodes.ACC_STATIC) == 0 ? 1 : 0));
+            }
+            return returnTaint;
         }
-        stack.remove(node);
-        visitedNodes.add(node);
-        sortedMethods.add(node);
     }
 
-    private static class PassthroughDataflowClassVisitor extends ClassVisitor {
-
-        Map<ClassReference.Handle, ClassReference> classMap;
-        private final MethodReference.Handle methodToVisit;
-        private final InheritanceMap inheritanceMap;
-        private final Map<MethodReference.Handle, Set<Integer>> passthroughDataflow;
-        private final SerializableDecider serializableDecider;
-
-        private String name;
-        private PassthroughDataflowMethodVisitor passthroughDataflowMethodVisitor;
+    /**
+     * Loads classes on a background thread, a fixed number of classes ahead of the analysis, so that a bounded class
+     * cache already holds a class by the time its methods are analyzed. Safe for concurrent use.
+     */
+    private static class ClassPrefetcher implements AutoCloseable {
+        private static final int PREFETCH_DISTANCE = 64;
+
+        private final List<ClassResourceEnumerator.ClassResource> classOrder;
+        private ExecutorService executor;
+        private int submitted = 0;
+
+        /**
+         * @param classOrder Classes in the order the analysis first reaches them
+         */
+        private ClassPrefetcher(List<ClassResourceEnumerator.ClassResource> classOrder) {
+            this.classOrder = classOrder;
+            submitUpTo(PREFETCH_DISTANCE);
+        }
 
-        public PassthroughDataflowClassVisitor(Map<ClassReference.Handle, ClassReference> classMap,
-                InheritanceMap inheritanceMap, Map<MethodReference.Handle, Set<Integer>> passthroughDataflow,
-                SerializableDecider serializableDecider, int api, MethodReference.Handle methodToVisit) {
-            super(api);
-            this.classMap = classMap;
-            this.inheritanceMap = inheritanceMap;
-            this.methodToVisit = methodToVisit;
-            this.passthroughDataflow = passthroughDataflow;
-            this.serializableDecider = serializableDecider;
+        /**
+         * Called when the analysis reaches the class at the given index of the class order.
+         */
+        private synchronized void reached(int classIndex) {
+            submitUpTo(classIndex + PREFETCH_DISTANCE);
         }
 
-        @Override
-        public void visit(int version, int access, String name, String signature,
-                          String superName, String[] interfaces) {
-            super.visit(version, access, name, signature, superName, interfaces);
-            this.name = name;
-            if (!this.name.equals(methodToVisit.getClassReference().getName())) {
-                throw new IllegalStateException("Expecting to visit " + methodToVisit.getClassReference().getName() + " but instead got " + this.name);
+        private synchronized void submitUpTo(int end) {
+            end = Math.min(end, classOrder.size());
+            if (submitted >= end) {
+                return;
+            }
+            if (executor == null) {
+                executor = Executors.newSingleThreadExecutor();
+            }
+            for (; submitted < end; submitted++) {
+                ClassResourceEnumerator.ClassResource classResource = classOrder.get(submitted);
+                executor.execute(() -> {
+                    try {
+                        classResource.prefetch();
+                    } catch (IOException e) {
+                        // The analysis reads the class again itself and reports the failure
+                        LOGGER.debug("Unable to prefetch " + classResource.getName(), e);
+                    }
+                });
             }
         }
 
         @Override
-        public MethodVisitor visitMethod(int access, String name, String desc,
-                                         String signature, String[] exceptions) {
-            if (!name.equals(methodToVisit.getName()) || !desc.equals(methodToVisit.getDesc())) {
-                return null;
-            }
-            if (passthroughDataflowMethodVisitor != null) {
-                throw new IllegalStateException("Constructing passthroughDataflowMethodVisitor twice!");
+        public synchronized void close() {
+            if (executor != null) {
+                executor.shutdownNow();
             }
-
-            MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
-            passthroughDataflowMethodVisitor = new PassthroughDataflowMethodVisitor(
-                    classMap, inheritanceMap, this.passthroughDataflow, serializableDecider,
-                    api, mv, this.name, access, name, desc, signature, exceptions);
-
-            return new JSRInlinerAdapter(passthroughDataflowMethodVisitor, access, name, desc, signature, exceptions);
         }
+    }
 
-        public Set<Integer> getReturnTaint() {
-            if (passthroughDataflowMethodVisitor == null) {
-                throw new IllegalStateException("Never constructed the passthroughDataflowmethodVisitor!");
-            }
-            return passthroughDataflowMethodVisitor.returnTaint;
+    public void save() throws IOException {
+        if (passthroughDataflow == null) {
+            throw new IllegalStateException("Save called before discover()");
         }
+
+        passthroughDataflow.save(Paths.get("passthrough.dat"));
+    }
+
+    public static PassthroughSummaries load() throws IOException {
+        return PassthroughSummaries.load(Paths.get("passthrough.dat"));
     }
 
     private static class PassthroughDataflowMethodVisitor extends TaintTrackingMethodVisitor<Integer> {
 
         private final Map<ClassReference.Handle, ClassReference> classMap;
         private final InheritanceMap inheritanceMap;
-        private final Map<MethodReference.Handle, Set<Integer>> passthroughDataflow;
         private final SerializableDecider serializableDecider;
 
         private final int access;
         private final String desc;
-        private final Set<Integer> returnTaint;
+        private final BitSet returnTaint;
 
         public PassthroughDataflowMethodVisitor(Map<ClassReference.Handle, ClassReference> classMap,
-                InheritanceMap inheritanceMap, Map<MethodReference.Handle,
-                Set<Integer>> passthroughDataflow, SerializableDecider serializableDeciderMap, int api, MethodVisitor mv,
-                String owner, int access, String name, String desc, String signature, String[] exceptions) {
-            super(inheritanceMap, passthroughDataflow, api, mv, owner, access, name, desc, signature, exceptions);
+                InheritanceMap inheritanceMap, PassthroughSummaries passthroughDataflow,
+                SerializableDecider serializableDeciderMap, int api, MethodVisitor mv,
+                String owner, int access, String name, String desc, String signature, String[] exceptions,
+                boolean checkFrames, MethodBudget methodBudget) {
+            super(inheritanceMap, passthroughDataflow, api, mv, owner, access, name, desc, signature, exceptions,
+                    checkFrames, methodBudget);
             this.classMap = classMap;
             this.inheritanceMap = inheritanceMap;
-            this.passthroughDataflow = passthroughDataflow;
             this.serializableDecider = serializableDeciderMap;
             this.access = access;
             this.desc = desc;
-            returnTaint = new HashSet<>();
+            returnTaint = new BitSet();
         }
 
         @Override
@@ -339,12 +639,12 @@ public class PassthroughDiscovery {
                 case Opcodes.FRETURN:
                 case Opcodes.ARETURN:
                     // int, float, 引用类型占1个size，所以直接返回栈顶的污点分析结果即可
-                    returnTaint.addAll(getStackTaint(0));
+                    addReturnTaint(getStackTaint(0));
                     break;
                 case Opcodes.LRETURN:
                 case Opcodes.DRETURN:
                     // long, double占2个size，所以要返回栈顶元素的下一个元素（栈顶元素为空的占位符）
-                    returnTaint.addAll(getStackTaint(1));
+                    addReturnTaint(getStackTaint(1));
                     break;
                 case Opcodes.RETURN:
                     // RETURN指令返回void，不做处理
@@ -357,6 +657,12 @@ public class PassthroughDiscovery {
             super.visitInsn(opcode);
         }
 
+        private void addReturnTaint(Set<Integer> taint) {
+            for (int arg : taint) {
+                returnTaint.set(arg);
+            }
+        }
+
         @Override
         public void visitFieldInsn(int opcode, String owner, String name, String desc) {
 
@@ -371,10 +677,10 @@ public class PassthroughDiscovery {
                         Boolean isTransient = null;
 
                         // If a field type could not possibly be serialized, it's effectively transient
-                        if (!couldBeSerialized(serializableDecider, inheritanceMap, new ClassReference.Handle(type.getInternalName()))) {
+                        if (!couldBeSerialized(serializableDecider, inheritanceMap, ClassReference.Handle.of(type.getInternalName()))) {
                             isTransient = Boolean.TRUE;
                         } else {
-                            ClassReference clazz = classMap.get(new ClassReference.Handle(owner));
+                            ClassReference clazz = classMap.get(ClassReference.Handle.of(owner));
                             while (clazz != null) {
                                 for (ClassReference.Member member : clazz.getMembers()) {
                                     if (member.getName().equals(name)) {
@@ -385,7 +691,7 @@ public class PassthroughDiscovery {
                                 if (isTransient != null) {
                                     break;
                                 }
-                                clazz = classMap.get(new ClassReference.Handle(clazz.getSuperClass()));
+                                clazz = classMap.get(ClassReference.Handle.of(clazz.getSuperClass()));
                             }
                         }
 
@@ -393,7 +699,7 @@ public class PassthroughDiscovery {
                         if (!Boolean.TRUE.equals(isTransient)) {
                             taint = getStackTaint(0);
                         } else {
-                            taint = new HashSet<>();
+                            taint = TaintSet.empty();
                         }
 
                         super.visitFieldInsn(opcode, owner, name, desc);
@@ -461,18 +767,14 @@ public class PassthroughDiscovery {
                         resultTaint = argTaint.get(0);
                     } else {
                         // 如果是其他方法调用，那么返回值的污点集合先初始化为空的Set
-                        resultTaint = new HashSet<>();
+                        resultTaint = new TaintSet<>();
                     }
                     // passthroughDataflow也就是calculatePassthroughDataflow()方法返回的结果
                     // 这一步获取调用的方法的污点分析结果，即callee的返回值受哪个（些）参数的污染
                     // 由于已经进行了逆拓扑排序，所以调用的方法必然已经先被分析过，污染结果存在对应的passthrough中了
-                    Set<Integer> passthrough = passthroughDataflow.get(new MethodReference.Handle(new ClassReference.Handle(owner), name, desc));
-                    if (passthrough != null) {
-                        for (Integer passthroughDataflowArg : passthrough) {
-                            // 取出对应索引上的参数，然后添加到resultTaint中
-                            resultTaint.addAll(argTaint.get(passthroughDataflowArg));
-                        }
-                    }
+                    // 取出对应索引上的参数，然后添加到resultTaint中
+                    addPassthroughTaint(resultTaint, argTaint,
+                            MethodReference.Handle.of(ClassReference.Handle.of(owner), name, desc));
                     break;
                 default:
                     throw new IllegalStateException("Unsupported opcode: " + opcode);
@@ -491,10 +793,12 @@ public class PassthroughDiscovery {
 
 
     public static void main(String[] args) throws Exception {
-        ClassLoader classLoader = Util.getWarClassLoader(Paths.get(args[0]));
+        ClassResourceEnumerator classResourceEnumerator = new ClassResourceEnumerator(
+                Collections.singletonList(Paths.get(args[0])), Runtime.getRuntime().availableProcessors());
 
-        PassthroughDiscovery passthroughDiscovery = new PassthroughDiscovery();
-        passthroughDiscovery.discover(new ClassResourceEnumerator(classLoader), new JavaDeserializationConfig());
+        PassthroughDiscovery passthroughDiscovery = new PassthroughDiscovery(Runtime.getRuntime().availableProcessors(),
+                PassthroughModels.loadDefault());
+        passthroughDiscovery.discover(classResourceEnumerator, new JavaDeserializationConfig());
         passthroughDiscovery.save();
     }
 }
@@ -0,0 +1,120 @@
+package gadgetinspector;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import gadgetinspector.data.ClassReference;
+import gadgetinspector.data.MethodReference;
+import gadgetinspector.data.PassthroughSummaries;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Passthrough dataflow models of library methods, which stand in for the analysis of their bodies. The built-in models
+ * are read from passthrough-models.txt on the classpath, and further model files may add to or replace them; see
+ * that file for the format. Models are indexed like analyzed summaries, so matching a call site against them is a
+ * lookup by method ID. Model files are loaded before the analysis starts, after which the models are only read.
+ */
+public class PassthroughModels {
+    private static final String DEFAULT_MODELS = "passthrough-models.txt";
+
+    private final Map<MethodReference.Handle, BitSet> models = new LinkedHashMap<>();
+    private PassthroughSummaries summaries;
+
+    public static PassthroughModels loadDefault() throws IOException {
+        PassthroughModels passthroughModels = new PassthroughModels();
+        try (InputStream in = PassthroughModels.class.getResourceAsStream(DEFAULT_MODELS)) {
+            if (in == null) {
+                throw new IOException("Missing built-in passthrough models " + DEFAULT_MODELS);
+            }
+            passthroughModels.read(in, DEFAULT_MODELS);
+        }
+        return passthroughModels;
+    }
+
+    /**
+     * Adds the models of the given file, replacing any model of the same method.
+     */
+    public void load(Path modelFile) throws IOException {
+        try (InputStream in = Files.newInputStream(modelFile)) {
+            read(in, modelFile.toString());
+        }
+    }
+
+    private void read(InputStream in, String source) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber += 1;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            if (fields.length < 3 || fields.length > 4) {
+                throw new IOException("Invalid passthrough model at " + source + ":" + lineNumber + ": " + line);
+            }
+            BitSet args = new BitSet();
+            if (fields.length == 4) {
+                for (String arg : fields[3].split(",")) {
+                    if (arg.length() > 0) {
+                        int argIndex;
+                        try {
+                            argIndex = Integer.parseInt(arg);
+                        } catch (NumberFormatException e) {
+                            argIndex = -1;
+                        }
+                        if (argIndex < 0) {
+                            throw new IOException("Invalid argument index at " + source + ":" + lineNumber + ": " + arg);
+                        }
+                        args.set(argIndex);
+                    }
+                }
+            }
+            models.put(MethodReference.Handle.of(ClassReference.Handle.of(fields[0]), fields[1], fields[2]), args);
+        }
+        summaries = null;
+    }
+
+    /**
+     * @return Whether the method has a model, even one through which no argument passes
+     */
+    public boolean isModelled(MethodReference.Handle method) {
+        return models.containsKey(method);
+    }
+
+    /**
+     * @return The models as summaries
+     */
+    public synchronized PassthroughSummaries getSummaries() {
+        if (summaries == null) {
+            summaries = new PassthroughSummaries();
+            for (Map.Entry<MethodReference.Handle, BitSet> model : models.entrySet()) {
+                summaries.addArgs(model.getKey(), model.getValue());
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * @return A hash of the models in effect, identifying the analysis results that depend on them
+     */
+    public String getDigest() {
+        Hasher hasher = Hashing.sha256().newHasher();
+        models.entrySet().stream()
+                .map(model -> model.getKey().getClassReference().getName() + " " + model.getKey().getName() + " "
+                        + model.getKey().getDesc() + " " + model.getValue())
+                .sorted()
+                .forEach(model -> hasher.putString(model, StandardCharsets.UTF_8).putChar('\n'));
+        return hasher.hash().toString();
+    }
+}
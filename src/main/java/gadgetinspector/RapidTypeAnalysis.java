@@ -0,0 +1,203 @@
+package gadgetinspector;
+
+import gadgetinspector.data.ClassReference;
+import gadgetinspector.data.CompactCallGraph;
+import gadgetinspector.data.InheritanceMap;
+import gadgetinspector.data.MethodCalls;
+import gadgetinspector.data.MethodImplementations;
+import gadgetinspector.data.MethodReference;
+import gadgetinspector.data.Source;
+import gadgetinspector.data.SymbolTable;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the classes which can have live instances when deserializing, by rapid type analysis over the methods
+ * reachable from the sources. A class is live if one of its constructors is reachable, or if the deserializer can
+ * create it: the classes declaring the sources, and every serializable class assignable to a non-transient field of a
+ * class the deserializer can create. Virtual calls only reach the overriding methods of live classes, so the set of
+ * reachable methods and the set of live classes grow together until neither changes.
+ */
+public class RapidTypeAnalysis {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RapidTypeAnalysis.class);
+
+    private final Map<ClassReference.Handle, ClassReference> classMap;
+    private final InheritanceMap inheritanceMap;
+    private final MethodImplementations methodImplementations;
+    private final SerializableDecider serializableDecider;
+    private final CompactCallGraph callGraph;
+    private final Map<ClassReference.Handle, List<MethodReference.Handle>> methodsByClass = new HashMap<>();
+
+    private final BitSet liveClasses = new BitSet();
+    private final BitSet deserializableClasses = new BitSet();
+    private final BitSet reachedMethods = new BitSet();
+    private final BitSet calledMethods = new BitSet();
+    // Owners of the methods called so far, by name and desc, to find the overrides of classes becoming live later
+    private final Map<String, List<ClassReference.Handle>> calledSignatures = new HashMap<>();
+    private final Set<ClassReference.Handle> expandedFieldTypes = new HashSet<>();
+    private final Deque<Integer> pendingMethods = new ArrayDeque<>();
+    private final Deque<ClassReference.Handle> pendingDeserializableClasses = new ArrayDeque<>();
+
+    public RapidTypeAnalysis(Map<ClassReference.Handle, ClassReference> classMap,
+                             Map<MethodReference.Handle, MethodReference> methodMap, InheritanceMap inheritanceMap,
+                             MethodImplementations methodImplementations, SerializableDecider serializableDecider,
+                             Collection<MethodCalls> methodCalls) {
+        this.classMap = classMap;
+        this.inheritanceMap = inheritanceMap;
+        this.methodImplementations = methodImplementations;
+        this.serializableDecider = serializableDecider;
+        this.callGraph = CompactCallGraph.fromMethodCalls(methodCalls);
+        for (MethodReference method : methodMap.values()) {
+            if (!method.isStatic()) {
+                methodsByClass.computeIfAbsent(method.getClassReference(), k -> new ArrayList<>()).add(method.getHandle());
+            }
+        }
+    }
+
+    public void analyze(Collection<Source> sources) {
+        for (Source source : sources) {
+            addDeserializableClass(source.getSourceMethod().getClassReference());
+            reach(source.getSourceMethod());
+        }
+
+        while (!pendingMethods.isEmpty() || !pendingDeserializableClasses.isEmpty()) {
+            if (!pendingDeserializableClasses.isEmpty()) {
+                expandFields(pendingDeserializableClasses.pop());
+                continue;
+            }
+            int method = pendingMethods.pop();
+            for (int edge = callGraph.getEdgeStart(method); edge < callGraph.getEdgeEnd(method); edge++) {
+                addCall(SymbolTable.getMethodHandle(callGraph.getTarget(edge)));
+            }
+        }
+
+        LOGGER.info(String.format("Rapid type analysis: %d of %d classes live, %d methods reachable",
+                liveClasses.cardinality(), classMap.size(), reachedMethods.cardinality()));
+    }
+
+    public boolean isLive(ClassReference.Handle clazz) {
+        return clazz.getId() >= 0 && liveClasses.get(clazz.getId());
+    }
+
+    private void reach(MethodReference.Handle method) {
+        if (!reachedMethods.get(method.getId())) {
+            reachedMethods.set(method.getId());
+            pendingMethods.add(method.getId());
+        }
+    }
+
+    private void addCall(MethodReference.Handle target) {
+        reach(target);
+        if (target.getName().equals("<init>")) {
+            addLiveClass(target.getClassReference());
+        }
+        if (calledMethods.get(target.getId())) {
+            return;
+        }
+        calledMethods.set(target.getId());
+
+        calledSignatures.computeIfAbsent(target.getName() + target.getDesc(), k -> new ArrayList<>())
+                .add(target.getClassReference());
+        Set<MethodReference.Handle> overridingMethods = methodImplementations.getOverridingMethods(target);
+        if (overridingMethods != null) {
+            for (MethodReference.Handle overridingMethod : overridingMethods) {
+                if (isLive(overridingMethod.getClassReference())) {
+                    reach(overridingMethod);
+                }
+            }
+        }
+    }
+
+    private void addLiveClass(ClassReference.Handle clazz) {
+        if (clazz.getId() < 0 || liveClasses.get(clazz.getId())) {
+            return;
+        }
+        liveClasses.set(clazz.getId());
+
+        // Methods of the new class overriding a method called so far become reachable
+        List<MethodReference.Handle> methods = methodsByClass.get(clazz);
+        if (methods == null) {
+            return;
+        }
+        for (MethodReference.Handle method : methods) {
+            List<ClassReference.Handle> callees = calledSignatures.get(method.getName() + method.getDesc());
+            if (callees == null) {
+                continue;
+            }
+            for (ClassReference.Handle callee : callees) {
+                if (inheritanceMap.isSubclassOf(clazz, callee)) {
+                    reach(method);
+                    break;
+                }
+            }
+        }
+    }
+
+    private void addDeserializableClass(ClassReference.Handle clazz) {
+        addLiveClass(clazz);
+        if (clazz.getId() >= 0 && !deserializableClasses.get(clazz.getId())) {
+            deserializableClasses.set(clazz.getId());
+            pendingDeserializableClasses.add(clazz);
+        }
+    }
+
+    private void expandFields(ClassReference.Handle clazz) {
+        List<ClassReference.Handle> declaringClasses = new ArrayList<>();
+        declaringClasses.add(clazz);
+        Set<ClassReference.Handle> superClasses = inheritanceMap.getSuperClasses(clazz);
+        if (superClasses != null) {
+            declaringClasses.addAll(superClasses);
+        }
+
+        for (ClassReference.Handle declaringClass : declaringClasses) {
+            ClassReference classReference = classMap.get(declaringClass);
+            if (classReference == null) {
+                continue;
+            }
+            for (ClassReference.Member member : classReference.getMembers()) {
+                if ((member.getModifiers() & Opcodes.ACC_TRANSIENT) != 0) {
+                    continue;
+                }
+                ClassReference.Handle fieldType = member.getType();
+                if (fieldType.getName().startsWith("[")) {
+                    Type elementType = Type.getType(fieldType.getName()).getElementType();
+                    if (elementType.getSort() != Type.OBJECT) {
+                        continue;
+                    }
+                    fieldType = ClassReference.Handle.of(elementType.getInternalName());
+                }
+                if (!classMap.containsKey(fieldType) || !expandedFieldTypes.add(fieldType)) {
+                    continue;
+                }
+
+                // The deserializer may store any serializable class assignable to the field
+                addIfSerializable(fieldType);
+                Set<ClassReference.Handle> subClasses = inheritanceMap.getSubClasses(fieldType);
+                if (subClasses != null) {
+                    for (ClassReference.Handle subClass : subClasses) {
+                        addIfSerializable(subClass);
+                    }
+                }
+            }
+        }
+    }
+
+    private void addIfSerializable(ClassReference.Handle clazz) {
+        if (Boolean.TRUE.equals(serializableDecider.apply(clazz))) {
+            addDeserializableClass(clazz);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package gadgetinspector;
+
+import gadgetinspector.data.MethodReference;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Restricts the implementations found by another {@link ImplementationFinder} to the classes
+ * {@link RapidTypeAnalysis} found live. The target method itself is always kept, as the wrapped finders assume.
+ */
+public class RtaImplementationFinder implements ImplementationFinder {
+
+    private final ImplementationFinder implementationFinder;
+    private final RapidTypeAnalysis rapidTypeAnalysis;
+    private final ConcurrentHashMap<MethodReference.Handle, Set<MethodReference.Handle>> implementationCache = new ConcurrentHashMap<>();
+
+    public RtaImplementationFinder(ImplementationFinder implementationFinder, RapidTypeAnalysis rapidTypeAnalysis) {
+        this.implementationFinder = implementationFinder;
+        this.rapidTypeAnalysis = rapidTypeAnalysis;
+    }
+
+    @Override
+    public Set<MethodReference.Handle> getImplementations(MethodReference.Handle target) {
+        Set<MethodReference.Handle> allImpls = implementationCache.get(target);
+        if (allImpls == null) {
+            allImpls = implementationCache.computeIfAbsent(target, this::findImplementations);
+        }
+        return allImpls;
+    }
+
+    private Set<MethodReference.Handle> findImplementations(MethodReference.Handle target) {
+        Set<MethodReference.Handle> allImpls = new HashSet<>();
+        for (MethodReference.Handle impl : implementationFinder.getImplementations(target)) {
+            if (impl.equals(target) || rapidTypeAnalysis.isLive(impl.getClassReference())) {
+                allImpls.add(impl);
+            }
+        }
+        return Collections.unmodifiableSet(allImpls);
+    }
+}
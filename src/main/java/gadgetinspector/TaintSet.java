@@ -0,0 +1,222 @@
+package gadgetinspector;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The taint of a stack slot or local variable tracked by {@link TaintTrackingMethodVisitor}. Slots holding the same
+ * value share one instance, so that tainting it through one slot taints the others, as with the sets it replaces.
+ * <p>
+ * Argument indexes below 64 are held as bits of a long; any other elements are held in an array which is never
+ * modified once assigned, so that copying a set shares the array and only a later addition copies it. Sets of a
+ * single such element share an interned array. Values known to be untainted share the immutable {@link #empty()}
+ * set.
+ */
+public final class TaintSet<T> extends AbstractSet<T> {
+    private static final Object[] NO_ELEMENTS = new Object[0];
+    private static final TaintSet<?> EMPTY = new TaintSet<>(true);
+    // Bounded, since the elements of call graph taint include field names
+    private static final int MAX_INTERNED_SINGLETONS = 4096;
+    private static final ConcurrentHashMap<Object, Object[]> INTERNED_SINGLETONS = new ConcurrentHashMap<>();
+    // Past this many elements, membership tests when merging go through a hash set
+    private static final int MAX_LINEAR_SEARCH = 16;
+
+    private final boolean immutable;
+    private long bits;
+    private Object[] elements = NO_ELEMENTS;
+
+    public TaintSet() {
+        this(false);
+    }
+
+    public TaintSet(TaintSet<T> copy) {
+        this(false);
+        this.bits = copy.bits;
+        this.elements = copy.elements;
+    }
+
+    private TaintSet(boolean immutable) {
+        this.immutable = immutable;
+    }
+
+    /**
+     * @return The shared taint of untainted values, which cannot be added to
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> TaintSet<T> empty() {
+        return (TaintSet<T>) EMPTY;
+    }
+
+    /**
+     * @return A set of its own with the same taint, or the same set if it is immutable
+     */
+    public static <T> TaintSet<T> copyOf(TaintSet<T> taint) {
+        return taint.immutable ? taint : new TaintSet<>(taint);
+    }
+
+    public boolean isImmutable() {
+        return immutable;
+    }
+
+    @Override
+    public int size() {
+        return Long.bitCount(bits) + elements.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return bits == 0 && elements.length == 0;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        int bit = bitOf(o);
+        if (bit >= 0) {
+            return (bits & (1L << bit)) != 0;
+        }
+        return indexOf(elements, o) >= 0;
+    }
+
+    @Override
+    public boolean add(T t) {
+        int bit = bitOf(t);
+        if (bit >= 0) {
+            if ((bits & (1L << bit)) != 0) {
+                return false;
+            }
+            checkMutable();
+            bits |= 1L << bit;
+            return true;
+        }
+        if (indexOf(elements, t) >= 0) {
+            return false;
+        }
+        checkMutable();
+        if (elements.length == 0) {
+            elements = singleton(t);
+        } else {
+            Object[] grown = Arrays.copyOf(elements, elements.length + 1);
+            grown[elements.length] = t;
+            elements = grown;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends T> c) {
+        if (!(c instanceof TaintSet)) {
+            return super.addAll(c);
+        }
+        TaintSet<?> other = (TaintSet<?>) c;
+        boolean changed = false;
+        if ((bits | other.bits) != bits) {
+            checkMutable();
+            bits |= other.bits;
+            changed = true;
+        }
+        if (other.elements.length == 0 || other.elements == elements) {
+            return changed;
+        }
+        if (elements.length == 0) {
+            checkMutable();
+            elements = other.elements;
+            return true;
+        }
+
+        Set<Object> present = null;
+        if (elements.length > MAX_LINEAR_SEARCH) {
+            present = new HashSet<>(Arrays.asList(elements));
+        }
+        Object[] merged = null;
+        int size = elements.length;
+        for (Object element : other.elements) {
+            boolean found = present != null ? present.contains(element) : indexOf(elements, element) >= 0;
+            if (!found) {
+                if (merged == null) {
+                    merged = Arrays.copyOf(elements, elements.length + other.elements.length);
+                }
+                merged[size++] = element;
+            }
+        }
+        if (merged == null) {
+            return changed;
+        }
+        checkMutable();
+        elements = Arrays.copyOf(merged, size);
+        return true;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private long remainingBits = bits;
+            private final Object[] iteratedElements = elements;
+            private int elementIndex = 0;
+
+            @Override
+            public boolean hasNext() {
+                return remainingBits != 0 || elementIndex < iteratedElements.length;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (remainingBits != 0) {
+                    int bit = Long.numberOfTrailingZeros(remainingBits);
+                    remainingBits &= remainingBits - 1;
+                    return (T) Integer.valueOf(bit);
+                }
+                if (elementIndex >= iteratedElements.length) {
+                    throw new NoSuchElementException();
+                }
+                return (T) iteratedElements[elementIndex++];
+            }
+        };
+    }
+
+    private void checkMutable() {
+        if (immutable) {
+            throw new UnsupportedOperationException("Cannot taint an untainted value");
+        }
+    }
+
+    private static int bitOf(Object o) {
+        if (o instanceof Integer) {
+            int i = (Integer) o;
+            if (i >= 0 && i < Long.SIZE) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(Object[] elements, Object o) {
+        for (int i = 0; i < elements.length; i++) {
+            if (elements[i].equals(o)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Object[] singleton(Object element) {
+        Object[] interned = INTERNED_SINGLETONS.get(element);
+        if (interned != null) {
+            return interned;
+        }
+        Object[] singleton = new Object[]{element};
+        if (INTERNED_SINGLETONS.size() < MAX_INTERNED_SINGLETONS) {
+            interned = INTERNED_SINGLETONS.putIfAbsent(element, singleton);
+            if (interned != null) {
+                return interned;
+            }
+        }
+        return singleton;
+    }
+}
@@ -3,6 +3,7 @@ package gadgetinspector;
 import gadgetinspector.data.ClassReference;
 import gadgetinspector.data.InheritanceMap;
 import gadgetinspector.data.MethodReference;
+import gadgetinspector.data.PassthroughSummaries;
 import org.objectweb.asm.*;
 import org.objectweb.asm.commons.AnalyzerAdapter;
 
@@ -10,47 +11,9 @@ import java.util.*;
 
 public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
 
-    private static final Object[][] PASSTHROUGH_DATAFLOW = new Object[][] {
-            { "java/lang/Object", "toString", "()Ljava/lang/String;", 0 },
-
-            // Taint from ObjectInputStream. Note that defaultReadObject() is handled differently below
-            { "java/io/ObjectInputStream", "readObject", "()Ljava/lang/Object;", 0},
-            { "java/io/ObjectInputStream", "readFields", "()Ljava/io/ObjectInputStream$GetField;", 0},
-            { "java/io/ObjectInputStream$GetField", "get", "(Ljava/lang/String;Ljava/lang/Object;)Ljava/lang/Object;", 0 },
-
-            // Pass taint from class name to returned class
-            { "java/lang/Object", "getClass", "()Ljava/lang/Class;", 0 },
-            { "java/lang/Class", "forName", "(Ljava/lang/String;)Ljava/lang/Class;", 0 },
-            // Pass taint from class or method name to returned method
-            { "java/lang/Class", "getMethod", "(Ljava/lang/String;[Ljava/lang/Class;)Ljava/lang/reflect/Method;", 0, 1 },
-            // Pass taint from class to methods
-            { "java/lang/Class", "getMethods", "()[Ljava/lang/reflect/Method;", 0 },
-
-            { "java/lang/StringBuilder", "<init>", "(Ljava/lang/String;)V", 0, 1 },
-            { "java/lang/StringBuilder", "<init>", "(Ljava/lang/CharSequence;)V", 0, 1 },
-            { "java/lang/StringBuilder", "append", "(Ljava/lang/Object;)Ljava/lang/StringBuilder;", 0, 1 },
-            { "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", 0, 1 },
-            { "java/lang/StringBuilder", "append", "(Ljava/lang/StringBuffer;)Ljava/lang/StringBuilder;", 0, 1 },
-            { "java/lang/StringBuilder", "append", "(Ljava/lang/CharSequence;)Ljava/lang/StringBuilder;", 0, 1 },
-            { "java/lang/StringBuilder", "append", "(Ljava/lang/CharSequence;II)Ljava/lang/StringBuilder;", 0, 1 },
-            { "java/lang/StringBuilder", "toString", "()Ljava/lang/String;", 0 },
-
-            { "java/io/ByteArrayInputStream", "<init>", "([B)V", 1 },
-            { "java/io/ByteArrayInputStream", "<init>", "([BII)V", 1 },
-            { "java/io/ObjectInputStream", "<init>", "(Ljava/io/InputStream;)V", 1},
-            { "java/io/File", "<init>", "(Ljava/lang/String;I)V", 1},
-            { "java/io/File", "<init>", "(Ljava/lang/String;Ljava/io/File;)V", 1},
-            { "java/io/File", "<init>", "(Ljava/lang/String;)V", 1},
-            { "java/io/File", "<init>", "(Ljava/lang/String;Ljava/lang/String;)V", 1},
-
-            { "java/nio/paths/Paths", "get", "(Ljava/lang/String;[Ljava/lang/String;)Ljava/nio/file/Path;", 0},
-
-            { "java/net/URL", "<init>", "(Ljava/lang/String;)V", 1 },
-    };
-
     private static class SavedVariableState<T> {
-        List<Set<T>> localVars;
-        List<Set<T>> stackVars;
+        List<TaintSet<T>> localVars;
+        List<TaintSet<T>> stackVars;
 
         public SavedVariableState() {
             localVars = new ArrayList<>();
@@ -61,32 +24,40 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
             this.localVars = new ArrayList<>(copy.localVars.size());
             this.stackVars = new ArrayList<>(copy.stackVars.size());
 
-            for (Set<T> original : copy.localVars) {
-                this.localVars.add(new HashSet<>(original));
+            // Copies share their elements until either is added to
+            for (TaintSet<T> original : copy.localVars) {
+                this.localVars.add(TaintSet.copyOf(original));
             }
-            for (Set<T> original : copy.stackVars) {
-                this.stackVars.add(new HashSet<>(original));
+            for (TaintSet<T> original : copy.stackVars) {
+                this.stackVars.add(TaintSet.copyOf(original));
             }
         }
 
         public void combine(SavedVariableState<T> copy) {
-            for (int i = 0; i < copy.localVars.size(); i++) {
-                while (i >= this.localVars.size()) {
-                    this.localVars.add(new HashSet<T>());
+            combine(this.localVars, copy.localVars);
+            combine(this.stackVars, copy.stackVars);
+        }
+
+        private static <T> void combine(List<TaintSet<T>> vars, List<TaintSet<T>> copyVars) {
+            for (int i = 0; i < copyVars.size(); i++) {
+                while (i >= vars.size()) {
+                    vars.add(new TaintSet<T>());
                 }
-                this.localVars.get(i).addAll(copy.localVars.get(i));
-            }
-            for (int i = 0; i < copy.stackVars.size(); i++) {
-                while (i >= this.stackVars.size()) {
-                    this.stackVars.add(new HashSet<T>());
+                TaintSet<T> copyVar = copyVars.get(i);
+                if (vars.get(i).isImmutable()) {
+                    if (!copyVar.isEmpty()) {
+                        vars.set(i, new TaintSet<>(copyVar));
+                    }
+                } else {
+                    vars.get(i).addAll(copyVar);
                 }
-                this.stackVars.get(i).addAll(copy.stackVars.get(i));
             }
         }
     }
 
     private final InheritanceMap inheritanceMap;
-    private final Map<MethodReference.Handle, Set<Integer>> passthroughDataflow;
+    private final PassthroughSummaries passthroughDataflow;
+    private final MethodBudget methodBudget;
 
     private final AnalyzerAdapter analyzerAdapter;
     private final int access;
@@ -95,14 +66,22 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
     private final String signature;
     private final String[] exceptions;
 
+    /**
+     * @param checkFrames Whether to check the tracked stack against the frames computed by an {@link AnalyzerAdapter}.
+     *                    A body that has been visited once without error is consistent with them, so later visits of
+     *                    the same body may skip the check.
+     * @param methodBudget Limits the work spent on the body, or null for no limit
+     */
     public TaintTrackingMethodVisitor(InheritanceMap inheritanceMap,
-                                      Map<MethodReference.Handle, Set<Integer>> passthroughDataflow,
+                                      PassthroughSummaries passthroughDataflow,
                                       final int api, final MethodVisitor mv, final String owner, int access,
-                                      String name, String desc, String signature, String[] exceptions) {
-        super(api, new AnalyzerAdapter(owner, access, name, desc, mv));
+                                      String name, String desc, String signature, String[] exceptions,
+                                      boolean checkFrames, MethodBudget methodBudget) {
+        super(api, checkFrames ? new AnalyzerAdapter(owner, access, name, desc, mv) : mv);
         this.inheritanceMap = inheritanceMap;
         this.passthroughDataflow = passthroughDataflow;
-        this.analyzerAdapter = (AnalyzerAdapter)this.mv;
+        this.methodBudget = methodBudget;
+        this.analyzerAdapter = checkFrames ? (AnalyzerAdapter)this.mv : null;
         this.access = access;
         this.name = name;
         this.desc = desc;
@@ -113,38 +92,43 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
     private SavedVariableState<T> savedVariableState = new SavedVariableState<T>();
     private Map<Label, SavedVariableState<T>> gotoStates = new HashMap<Label, SavedVariableState<T>>();
     private Set<Label> exceptionHandlerLabels = new HashSet<Label>();
+    private int instructionCount = 0;
+    private long startNanos;
 
     @Override
     public void visitCode() {
         super.visitCode();
+        instructionCount = 0;
+        startNanos = System.nanoTime();
         savedVariableState.localVars.clear();
         savedVariableState.stackVars.clear();
 
         if ((this.access & Opcodes.ACC_STATIC) == 0) {
-            savedVariableState.localVars.add(new HashSet<T>());
+            savedVariableState.localVars.add(new TaintSet<T>());
         }
         for (Type argType : Type.getArgumentTypes(desc)) {
             for (int i = 0; i < argType.getSize(); i++) {
-                savedVariableState.localVars.add(new HashSet<T>());
+                savedVariableState.localVars.add(new TaintSet<T>());
             }
         }
     }
 
-    private void push(T ... possibleValues) {
-        Set<T> vars = new HashSet<>();
-        for (T s : possibleValues) {
-            vars.add(s);
-        }
-        savedVariableState.stackVars.add(vars);
+    private void push() {
+        // A reference, which may be tainted later through another slot holding it, so it needs a set of its own
+        savedVariableState.stackVars.add(new TaintSet<T>());
+    }
+    private void pushUntainted() {
+        // A primitive computed by the instruction itself, whose taint is never added to
+        savedVariableState.stackVars.add(TaintSet.<T>empty());
     }
-    private void push(Set<T> possibleValues) {
+    private void push(TaintSet<T> possibleValues) {
         // Intentionally make this a reference to the same set
         savedVariableState.stackVars.add(possibleValues);
     }
-    private Set<T> pop() {
+    private TaintSet<T> pop() {
         return savedVariableState.stackVars.remove(savedVariableState.stackVars.size()-1);
     }
-    private Set<T> get(int stackIndex) {
+    private TaintSet<T> get(int stackIndex) {
         return savedVariableState.stackVars.get(savedVariableState.stackVars.size()-1-stackIndex);
     }
 
@@ -161,7 +145,7 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
                 objectSize = 2;
             }
             for (int j = savedVariableState.stackVars.size(); j < stackSize+objectSize; j++) {
-                savedVariableState.stackVars.add(new HashSet<T>());
+                savedVariableState.stackVars.add(new TaintSet<T>());
             }
             stackSize += objectSize;
         }
@@ -173,7 +157,7 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
                 objectSize = 2;
             }
             for (int j = savedVariableState.localVars.size(); j < localSize+objectSize; j++) {
-                savedVariableState.localVars.add(new HashSet<T>());
+                savedVariableState.localVars.add(new TaintSet<T>());
             }
             localSize += objectSize;
         }
@@ -191,7 +175,8 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
 
     @Override
     public void visitInsn(int opcode) {
-        Set<T> saved0, saved1, saved2, saved3;
+        countInstruction();
+        TaintSet<T> saved0, saved1, saved2, saved3;
 
         sanityCheck();
 
@@ -199,6 +184,8 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
             case Opcodes.NOP:
                 break;
             case Opcodes.ACONST_NULL:
+                push();
+                break;
             case Opcodes.ICONST_M1:
             case Opcodes.ICONST_0:
             case Opcodes.ICONST_1:
@@ -209,31 +196,35 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
             case Opcodes.FCONST_0:
             case Opcodes.FCONST_1:
             case Opcodes.FCONST_2:
-                push();
+                pushUntainted();
                 break;
             case Opcodes.LCONST_0:
             case Opcodes.LCONST_1:
             case Opcodes.DCONST_0:
             case Opcodes.DCONST_1:
-                push();
+                pushUntainted();
+                pushUntainted();
+                break;
+            case Opcodes.AALOAD:
+                pop();
+                pop();
                 push();
                 break;
             case Opcodes.IALOAD:
             case Opcodes.FALOAD:
-            case Opcodes.AALOAD:
             case Opcodes.BALOAD:
             case Opcodes.CALOAD:
             case Opcodes.SALOAD:
                 pop();
                 pop();
-                push();
+                pushUntainted();
                 break;
             case Opcodes.LALOAD:
             case Opcodes.DALOAD:
                 pop();
                 pop();
-                push();
-                push();
+                pushUntainted();
+                pushUntainted();
                 break;
             case Opcodes.IASTORE:
             case Opcodes.FASTORE:
@@ -325,7 +316,7 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
             case Opcodes.FREM:
                 pop();
                 pop();
-                push();
+                pushUntainted();
                 break;
             case Opcodes.LADD:
             case Opcodes.DADD:
@@ -341,27 +332,27 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
                 pop();
                 pop();
                 pop();
-                push();
-                push();
+                pushUntainted();
+                pushUntainted();
                 break;
             case Opcodes.INEG:
             case Opcodes.FNEG:
                 pop();
-                push();
+                pushUntainted();
                 break;
             case Opcodes.LNEG:
             case Opcodes.DNEG:
                 pop();
                 pop();
-                push();
-                push();
+                pushUntainted();
+                pushUntainted();
                 break;
             case Opcodes.ISHL:
             case Opcodes.ISHR:
             case Opcodes.IUSHR:
                 pop();
                 pop();
-                push();
+                pushUntainted();
                 break;
             case Opcodes.LSHL:
             case Opcodes.LSHR:
@@ -369,15 +360,15 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
                 pop();
                 pop();
                 pop();
-                push();
-                push();
+                pushUntainted();
+                pushUntainted();
                 break;
             case Opcodes.IAND:
             case Opcodes.IOR:
             case Opcodes.IXOR:
                 pop();
                 pop();
-                push();
+                pushUntainted();
                 break;
             case Opcodes.LAND:
             case Opcodes.LOR:
@@ -386,63 +377,63 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
                 pop();
                 pop();
                 pop();
-                push();
-                push();
+                pushUntainted();
+                pushUntainted();
                 break;
             case Opcodes.I2B:
             case Opcodes.I2C:
             case Opcodes.I2S:
             case Opcodes.I2F:
                 pop();
-                push();
+                pushUntainted();
                 break;
             case Opcodes.I2L:
             case Opcodes.I2D:
                 pop();
-                push();
-                push();
+                pushUntainted();
+                pushUntainted();
                 break;
             case Opcodes.L2I:
             case Opcodes.L2F:
                 pop();
                 pop();
-                push();
+                pushUntainted();
                 break;
             case Opcodes.D2L:
             case Opcodes.L2D:
                 pop();
                 pop();
-                push();
-                push();
+                pushUntainted();
+                pushUntainted();
                 break;
             case Opcodes.F2I:
                 pop();
-                push();
+                pushUntainted();
                 break;
             case Opcodes.F2L:
             case Opcodes.F2D:
                 pop();
-                push();
-                push();
+                pushUntainted();
+                pushUntainted();
                 break;
             case Opcodes.D2I:
             case Opcodes.D2F:
                 pop();
                 pop();
-                push();
+                pushUntainted();
                 break;
             case Opcodes.LCMP:
                 pop();
                 pop();
                 pop();
                 pop();
-                push();
+                pushUntainted();
                 break;
             case Opcodes.FCMPL:
             case Opcodes.FCMPG:
                 pop();
                 pop();
-                push();
+                pushUntainted();
                 break;
             case Opcodes.DCMPL:
             case Opcodes.DCMPG:
@@ -450,7 +441,7 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
                 pop();
                 pop();
                 pop();
-                push();
+                pushUntainted();
                 break;
             case Opcodes.IRETURN:
             case Opcodes.FRETURN:
@@ -466,7 +457,7 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
                 break;
             case Opcodes.ARRAYLENGTH:
                 pop();
-                push();
+                pushUntainted();
                 break;
             case Opcodes.ATHROW:
                 pop();
@@ -486,10 +477,11 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
 
     @Override
     public void visitIntInsn(int opcode, int operand) {
+        countInstruction();
         switch(opcode) {
             case Opcodes.BIPUSH:
             case Opcodes.SIPUSH:
-                push();
+                pushUntainted();
                 break;
             case Opcodes.NEWARRAY:
                 pop();
@@ -506,21 +498,22 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
 
     @Override
     public void visitVarInsn(int opcode, int var) {
+        countInstruction();
         // Extend local variable state to make sure we include the variable index
         for (int i = savedVariableState.localVars.size(); i <= var; i++) {
-            savedVariableState.localVars.add(new HashSet<T>());
+            savedVariableState.localVars.add(new TaintSet<T>());
         }
 
-        Set<T> saved0;
+        TaintSet<T> saved0;
         switch(opcode) {
             case Opcodes.ILOAD:
             case Opcodes.FLOAD:
-                push();
+                pushUntainted();
                 break;
             case Opcodes.LLOAD:
             case Opcodes.DLOAD:
-                push();
-                push();
+                pushUntainted();
+                pushUntainted();
                 break;
             case Opcodes.ALOAD:
                 push(savedVariableState.localVars.get(var));
@@ -528,13 +521,13 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
             case Opcodes.ISTORE:
             case Opcodes.FSTORE:
                 pop();
-                savedVariableState.localVars.set(var, new HashSet<T>());
+                savedVariableState.localVars.set(var, TaintSet.<T>empty());
                 break;
             case Opcodes.DSTORE:
             case Opcodes.LSTORE:
                 pop();
                 pop();
-                savedVariableState.localVars.set(var, new HashSet<T>());
+                savedVariableState.localVars.set(var, TaintSet.<T>empty());
                 break;
             case Opcodes.ASTORE:
                 saved0 = pop();
@@ -554,6 +547,7 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
 
     @Override
     public void visitTypeInsn(int opcode, String type) {
+        countInstruction();
         switch(opcode) {
             case Opcodes.NEW:
                 push();
@@ -567,7 +561,7 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
                 break;
             case Opcodes.INSTANCEOF:
                 pop();
-                push();
+                pushUntainted();
                 break;
             default:
                 throw new IllegalStateException("Unsupported opcode: " + opcode);
@@ -580,12 +574,13 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
 
     @Override
     public void visitFieldInsn(int opcode, String owner, String name, String desc) {
-        int typeSize = Type.getType(desc).getSize();
+        countInstruction();
+        Type type = Type.getType(desc);
+        int typeSize = type.getSize();
+        boolean isReference = type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY;
         switch (opcode) {
             case Opcodes.GETSTATIC:
-                for (int i = 0; i < typeSize; i++) {
-                    push();
-                }
+                pushField(typeSize, isReference);
                 break;
             case Opcodes.PUTSTATIC:
                 for (int i = 0; i < typeSize; i++) {
@@ -594,9 +589,7 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
                 break;
             case Opcodes.GETFIELD:
                 pop();
-                for (int i = 0; i < typeSize; i++) {
-                    push();
-                }
+                pushField(typeSize, isReference);
                 break;
             case Opcodes.PUTFIELD:
                 for (int i = 0; i < typeSize; i++) {
@@ -614,10 +607,21 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
         sanityCheck();
     }
 
+    private void pushField(int typeSize, boolean isReference) {
+        if (isReference) {
+            push();
+            return;
+        }
+        for (int i = 0; i < typeSize; i++) {
+            pushUntainted();
+        }
+    }
+
     @Override
     public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
-        final MethodReference.Handle methodHandle = new MethodReference.Handle(
-                new ClassReference.Handle(owner), name, desc);
+        countInstruction();
+        final MethodReference.Handle methodHandle = MethodReference.Handle.of(
+                ClassReference.Handle.of(owner), name, desc);
 
         // 获取方法参数类型
         Type[] argTypes = Type.getArgumentTypes(desc);
@@ -640,7 +644,7 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
             case Opcodes.INVOKESPECIAL:
             case Opcodes.INVOKEINTERFACE:
                 // 和子类一样，用Set模拟单个参数，多个Set构成一个List，表示所有传入方法的参数
-                final List<Set<T>> argTaint = new ArrayList<Set<T>>(argTypes.length);
+                final List<TaintSet<T>> argTaint = new ArrayList<TaintSet<T>>(argTypes.length);
                 for (int i = 0; i < argTypes.length; i++) {
                     // null占位
                     argTaint.add(null);
@@ -658,52 +662,42 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
                     }
                 }
 
-                Set<T> resultTaint;
+                TaintSet<T> resultTaint;
                 if (name.equals("<init>")) {
                     // Pass result taint through to original taint set; the initialized object is directly tainted by
                     // parameters
                     resultTaint = argTaint.get(0);
                 } else {
-                    resultTaint = new HashSet<>();
+                    resultTaint = new TaintSet<>();
                 }
 
 
                 // If calling defaultReadObject on a tainted ObjectInputStream, that taint passes to "this"
                 // 当调用ObjectInputStream#defaultReadObject的时候，给局部变量表中的第0个元素（也就是this）设置污染
                 if (owner.equals("java/io/ObjectInputStream") && name.equals("defaultReadObject") && desc.equals("()V")) {
-                    savedVariableState.localVars.get(0).addAll(argTaint.get(0));
-                }
-
-                // 遍历预设的污染名单，简化分析
-                // 污染的名单其实就是预设了一些函数，说明这些函数的返回值会固定受到哪一位参数的影响，当调用到这些函数的时候无需额外进行分析，直接获取预设的数值即可
-                for (Object[] passthrough : PASSTHROUGH_DATAFLOW) {
-                    // 如果调用的函数的签名匹配预设名单中的某一项
-                    if (passthrough[0].equals(owner) && passthrough[1].equals(name) && passthrough[2].equals(desc)) {
-                        for (int i = 3; i < passthrough.length; i++) {
-                            // 则将预设的参数污染位直接加入到resultTaint中
-                            resultTaint.addAll(argTaint.get((Integer)passthrough[i]));
-                        }
+                    TaintSet<T> thisTaint = savedVariableState.localVars.get(0);
+                    if (thisTaint.isImmutable()) {
+                        // Only once local 0 was overwritten by a primitive; it no longer shares its set with any slot
+                        thisTaint = new TaintSet<>();
+                        savedVariableState.localVars.set(0, thisTaint);
                     }
+                    thisTaint.addAll(argTaint.get(0));
                 }
 
                 // 还是因为逆拓扑排序的结果，最后调用的方法会被最先分析，所以当存在方法调用的时候，passthroughDataflow必然已经存储了该方法的参数污染分析结果
+                // 预设的污染名单（passthrough-models.txt）也已经作为摘要存储在passthroughDataflow中，无需额外匹配
                 if (passthroughDataflow != null) {
-                    Set<Integer> passthroughArgs = passthroughDataflow.get(methodHandle);
-                    if (passthroughArgs != null) {
-                        for (int arg : passthroughArgs) {
-                            resultTaint.addAll(argTaint.get(arg));
-                        }
-                    }
+                    addPassthroughTaint(resultTaint, argTaint, methodHandle);
                 }
 
                 // Heuristic; if the object implements java.util.Collection or java.util.Map, assume any method accepting an object
                 // taints the collection. Assume that any method returning an object returns the taint of the collection.
                 if (opcode != Opcodes.INVOKESTATIC && argTypes[0].getSort() == Type.OBJECT) {
                     // 获取被调用函数的owner class的所有基类
-                    Set<ClassReference.Handle> parents = inheritanceMap.getSuperClasses(new ClassReference.Handle(argTypes[0].getClassName().replace('.', '/')));
+                    ClassReference.Handle receiverClass = ClassReference.Handle.of(argTypes[0].getClassName().replace('.', '/'));
                     // 判断方法的owner class是否是Collection或者Map的子类
-                    if (parents != null && (parents.contains(new ClassReference.Handle("java/util/Collection")) ||
-                            parents.contains(new ClassReference.Handle("java/util/Map")))) {
+                    if (inheritanceMap.isSubclassOf(receiverClass, ClassReference.Handle.of("java/util/Collection")) ||
+                            inheritanceMap.isSubclassOf(receiverClass, ClassReference.Handle.of("java/util/Map"))) {
                         // 如果是，则认为除this之外的所有参数都会污染this，注意这里并不会向resultTaint中添加污染
                         for (int i = 1; i < argTaint.size(); i++) {
                             argTaint.get(0).addAll(argTaint.get(i));
@@ -723,7 +717,7 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
                     push(resultTaint);
                     for (int i = 1; i < retSize; i++) {
                         // 这里push是为了补位，让值占够size个大小
-                        push();
+                        pushUntainted();
                     }
                 }
                 break;
@@ -739,17 +733,22 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
 
     @Override
     public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+        countInstruction();
         int argsSize = 0;
         for (Type type : Type.getArgumentTypes(desc)) {
             argsSize += type.getSize();
         }
-        int retSize = Type.getReturnType(desc).getSize();
+        Type returnType = Type.getReturnType(desc);
 
         for (int i = 0; i < argsSize; i++) {
             pop();
         }
-        for (int i = 0; i < retSize; i++) {
+        if (returnType.getSort() == Type.OBJECT || returnType.getSort() == Type.ARRAY) {
             push();
+        } else {
+            for (int i = 0; i < returnType.getSize(); i++) {
+                pushUntainted();
+            }
         }
 
         super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
@@ -759,6 +758,7 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
 
     @Override
     public void visitJumpInsn(int opcode, Label label) {
+        countInstruction();
         switch (opcode) {
             case Opcodes.IFEQ:
             case Opcodes.IFNE:
@@ -784,7 +784,7 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
             case Opcodes.GOTO:
                 break;
             case Opcodes.JSR:
-                push();
+                pushUntainted();
                 super.visitJumpInsn(opcode, label);
                 return;
             default:
@@ -801,11 +801,11 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
     @Override
     public void visitLabel(Label label) {
         if (gotoStates.containsKey(label)) {
-            savedVariableState = new SavedVariableState(gotoStates.get(label));
+            savedVariableState = new SavedVariableState<T>(gotoStates.get(label));
         }
         if (exceptionHandlerLabels.contains(label)) {
             // Add the exception to the stack
-            push(new HashSet<T>());
+            push();
         }
 
         super.visitLabel(label);
@@ -815,9 +815,12 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
 
     @Override
     public void visitLdcInsn(Object cst) {
+        countInstruction();
         if (cst instanceof Long || cst instanceof Double) {
-            push();
-            push();
+            pushUntainted();
+            pushUntainted();
+        } else if (cst instanceof Integer || cst instanceof Float) {
+            pushUntainted();
         } else {
             push();
         }
@@ -829,6 +832,7 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
 
     @Override
     public void visitIincInsn(int var, int increment) {
+        countInstruction();
         // No effect on stack
         super.visitIincInsn(var, increment);
 
@@ -837,6 +841,7 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
 
     @Override
     public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+        countInstruction();
         // Operand stack has a switch index which gets popped
         pop();
 
@@ -853,6 +858,7 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
 
     @Override
     public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+        countInstruction();
         // Operand stack has a lookup index which gets popped
         pop();
 
@@ -868,6 +874,7 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
 
     @Override
     public void visitMultiANewArrayInsn(String desc, int dims) {
+        countInstruction();
         for (int i = 0; i < dims; i++) {
             pop();
         }
@@ -904,18 +911,28 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
         super.visitEnd();
     }
 
-    private void mergeGotoState(Label label, SavedVariableState savedVariableState) {
-        if (gotoStates.containsKey(label)) {
-            SavedVariableState combinedState = new SavedVariableState(gotoStates.get(label));
-            combinedState.combine(savedVariableState);
-            gotoStates.put(label, combinedState);
+    private void mergeGotoState(Label label, SavedVariableState<T> savedVariableState) {
+        // Saved states hold sets of their own, which no other state adds to, so they can be combined in place
+        SavedVariableState<T> gotoState = gotoStates.get(label);
+        if (gotoState != null) {
+            gotoState.combine(savedVariableState);
         } else {
-            gotoStates.put(label, new SavedVariableState(savedVariableState));
+            gotoStates.put(label, new SavedVariableState<T>(savedVariableState));
+        }
+    }
+
+    /**
+     * @throws MethodBudget.ExceededException Once the body has taken more than its budget
+     */
+    private void countInstruction() {
+        instructionCount += 1;
+        if (methodBudget != null) {
+            methodBudget.check(instructionCount, startNanos);
         }
     }
 
     private void sanityCheck() {
-        if (analyzerAdapter.stack != null && savedVariableState.stackVars.size() != analyzerAdapter.stack.size()) {
+        if (analyzerAdapter != null && analyzerAdapter.stack != null && savedVariableState.stackVars.size() != analyzerAdapter.stack.size()) {
             throw new IllegalStateException("Bad stack size.");
         }
     }
@@ -924,14 +941,14 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
         return savedVariableState.stackVars.get(savedVariableState.stackVars.size()-1-index);
     }
     protected void setStackTaint(int index, T ... possibleValues) {
-        Set<T> values = new HashSet<T>();
+        TaintSet<T> values = new TaintSet<T>();
         for (T value : possibleValues) {
             values.add(value);
         }
         savedVariableState.stackVars.set(savedVariableState.stackVars.size()-1-index, values);
     }
     protected void setStackTaint(int index, Collection<T> possibleValues) {
-        Set<T> values = new HashSet<T>();
+        TaintSet<T> values = new TaintSet<T>();
         values.addAll(possibleValues);
         savedVariableState.stackVars.set(savedVariableState.stackVars.size()-1-index, values);
     }
@@ -940,18 +957,36 @@ public class TaintTrackingMethodVisitor<T> extends MethodVisitor {
         return savedVariableState.localVars.get(index);
     }
     protected void setLocalTaint(int index, T ... possibleValues) {
-        Set<T> values = new HashSet<T>();
+        TaintSet<T> values = new TaintSet<T>();
         for (T value : possibleValues) {
             values.add(value);
         }
         savedVariableState.localVars.set(index, values);
     }
     protected void setLocalTaint(int index, Collection<T> possibleValues) {
-        Set<T> values = new HashSet<T>();
+        TaintSet<T> values = new TaintSet<T>();
         values.addAll(possibleValues);
         savedVariableState.localVars.set(index, values);
     }
 
+    /**
+     * Adds to the result taint of a call the taint of each argument the called method passes through to its return
+     * value, according to its summary.
+     */
+    protected void addPassthroughTaint(Set<T> resultTaint, List<? extends Set<T>> argTaint,
+                                       MethodReference.Handle method) {
+        BitSet wideArgs = passthroughDataflow.getWideArgs(method);
+        if (wideArgs != null) {
+            for (int arg = wideArgs.nextSetBit(0); arg >= 0; arg = wideArgs.nextSetBit(arg + 1)) {
+                resultTaint.addAll(argTaint.get(arg));
+            }
+            return;
+        }
+        for (long args = passthroughDataflow.getArgs(method); args != 0; args &= args - 1) {
+            resultTaint.addAll(argTaint.get(Long.numberOfTrailingZeros(args)));
+        }
+    }
+
     protected static final boolean couldBeSerialized(SerializableDecider serializableDecider, InheritanceMap inheritanceMap, ClassReference.Handle clazz) {
         if (Boolean.TRUE.equals(serializableDecider.apply(clazz))) {
             return true;
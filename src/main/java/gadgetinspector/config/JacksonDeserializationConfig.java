@@ -4,13 +4,13 @@ import gadgetinspector.ImplementationFinder;
 import gadgetinspector.SerializableDecider;
 import gadgetinspector.SourceDiscovery;
 import gadgetinspector.data.InheritanceMap;
+import gadgetinspector.data.MethodImplementations;
 import gadgetinspector.data.MethodReference;
 import gadgetinspector.jackson.JacksonImplementationFinder;
 import gadgetinspector.jackson.JacksonSerializableDecider;
 import gadgetinspector.jackson.JacksonSourceDiscovery;
 
 import java.util.Map;
-import java.util.Set;
 
 public class JacksonDeserializationConfig implements GIConfig {
 
@@ -26,7 +26,7 @@ public class JacksonDeserializationConfig implements GIConfig {
 
     @Override
     public ImplementationFinder getImplementationFinder(Map<MethodReference.Handle, MethodReference> methodMap,
-                                                        Map<MethodReference.Handle, Set<MethodReference.Handle>> methodImplMap,
+                                                        MethodImplementations methodImplementations,
                                                         InheritanceMap inheritanceMap) {
         return new JacksonImplementationFinder(getSerializableDecider(methodMap, inheritanceMap));
     }
@@ -4,13 +4,13 @@ import gadgetinspector.ImplementationFinder;
 import gadgetinspector.SerializableDecider;
 import gadgetinspector.SourceDiscovery;
 import gadgetinspector.data.InheritanceMap;
+import gadgetinspector.data.MethodImplementations;
 import gadgetinspector.data.MethodReference;
 import gadgetinspector.javaserial.SimpleImplementationFinder;
 import gadgetinspector.javaserial.SimpleSerializableDecider;
 import gadgetinspector.javaserial.SimpleSourceDiscovery;
 
 import java.util.Map;
-import java.util.Set;
 
 public class JavaDeserializationConfig implements GIConfig {
 
@@ -26,9 +26,9 @@ public class JavaDeserializationConfig implements GIConfig {
 
     @Override
     public ImplementationFinder getImplementationFinder(Map<MethodReference.Handle, MethodReference> methodMap,
-                                                        Map<MethodReference.Handle, Set<MethodReference.Handle>> methodImplMap,
+                                                        MethodImplementations methodImplementations,
                                                         InheritanceMap inheritanceMap) {
-        return new SimpleImplementationFinder(getSerializableDecider(methodMap, inheritanceMap), methodImplMap);
+        return new SimpleImplementationFinder(getSerializableDecider(methodMap, inheritanceMap), methodImplementations);
     }
 
     @Override
@@ -0,0 +1,240 @@
+package gadgetinspector.data;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable set of {@link SymbolTable} class IDs, compressed the way roaring bitmaps are: IDs are split by their
+ * upper 16 bits into containers, and each container holds its lower 16 bits either as a sorted array, while it has at
+ * most {@value #MAX_ARRAY_SIZE} entries, or as a 65536 bit bitmap. Small sets such as the ancestors of a class cost a
+ * few bytes per member, and large ones such as the subclasses of {@code java/lang/Object} a bit per ID.
+ */
+public class ClassIdSet {
+    private static final int MAX_ARRAY_SIZE = 4096;
+    private static final int BITMAP_WORDS = 1 << 16 >>> 6;
+    private static final byte ARRAY_CONTAINER = 0;
+    private static final byte BITMAP_CONTAINER = 1;
+
+    public static final ClassIdSet EMPTY = new ClassIdSet(new char[0], new Object[0], new int[0]);
+
+    private final char[] keys;
+    // Either a sorted char[] of low bits or a long[] bitmap, per key
+    private final Object[] containers;
+    private final int[] cardinalities;
+    private final int size;
+
+    private ClassIdSet(char[] keys, Object[] containers, int[] cardinalities) {
+        this.keys = keys;
+        this.containers = containers;
+        this.cardinalities = cardinalities;
+        int size = 0;
+        for (int cardinality : cardinalities) {
+            size += cardinality;
+        }
+        this.size = size;
+    }
+
+    /**
+     * @param ids Array holding non-negative IDs in ascending order, without duplicates, from index from up to to
+     */
+    public static ClassIdSet ofSorted(int[] ids, int from, int to) {
+        if (from == to) {
+            return EMPTY;
+        }
+        int containerCount = 1;
+        for (int i = from + 1; i < to; i++) {
+            if (ids[i] >>> 16 != ids[i - 1] >>> 16) {
+                containerCount++;
+            }
+        }
+
+        char[] keys = new char[containerCount];
+        Object[] containers = new Object[containerCount];
+        int[] cardinalities = new int[containerCount];
+        int start = from;
+        for (int c = 0; c < containerCount; c++) {
+            int key = ids[start] >>> 16;
+            int end = start;
+            while (end < to && ids[end] >>> 16 == key) {
+                end++;
+            }
+            keys[c] = (char) key;
+            cardinalities[c] = end - start;
+            if (end - start <= MAX_ARRAY_SIZE) {
+                char[] values = new char[end - start];
+                for (int i = start; i < end; i++) {
+                    values[i - start] = (char) ids[i];
+                }
+                containers[c] = values;
+            } else {
+                long[] bitmap = new long[BITMAP_WORDS];
+                for (int i = start; i < end; i++) {
+                    int low = ids[i] & 0xFFFF;
+                    bitmap[low >>> 6] |= 1L << low;
+                }
+                containers[c] = bitmap;
+            }
+            start = end;
+        }
+        return new ClassIdSet(keys, containers, cardinalities);
+    }
+
+    /**
+     * @param ids Non-negative IDs in any order, possibly with duplicates
+     */
+    public static ClassIdSet of(int[] ids) {
+        int[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (count == 0 || sorted[count - 1] != sorted[i]) {
+                sorted[count++] = sorted[i];
+            }
+        }
+        return ofSorted(sorted, 0, count);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(int id) {
+        if (id < 0) {
+            return false;
+        }
+        int c = Arrays.binarySearch(keys, (char) (id >>> 16));
+        if (c < 0) {
+            return false;
+        }
+        Object container = containers[c];
+        if (container instanceof long[]) {
+            int low = id & 0xFFFF;
+            return (((long[]) container)[low >>> 6] & (1L << low)) != 0;
+        }
+        return Arrays.binarySearch((char[]) container, (char) id) >= 0;
+    }
+
+    /**
+     * @return The IDs in ascending order
+     */
+    public int[] toArray() {
+        int[] ids = new int[size];
+        int i = 0;
+        for (int c = 0; c < keys.length; c++) {
+            int high = keys[c] << 16;
+            Object container = containers[c];
+            if (container instanceof long[]) {
+                long[] bitmap = (long[]) container;
+                for (int word = 0; word < bitmap.length; word++) {
+                    long bits = bitmap[word];
+                    while (bits != 0) {
+                        ids[i++] = high | (word << 6) | Long.numberOfTrailingZeros(bits);
+                        bits &= bits - 1;
+                    }
+                }
+            } else {
+                for (char low : (char[]) container) {
+                    ids[i++] = high | low;
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return A read-only view of the set as class handles
+     */
+    public Set<ClassReference.Handle> asHandles() {
+        return new AbstractSet<ClassReference.Handle>() {
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof ClassReference.Handle && ClassIdSet.this.contains(((ClassReference.Handle) o).getId());
+            }
+
+            @Override
+            public Iterator<ClassReference.Handle> iterator() {
+                final int[] ids = ClassIdSet.this.toArray();
+                return new Iterator<ClassReference.Handle>() {
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < ids.length;
+                    }
+
+                    @Override
+                    public ClassReference.Handle next() {
+                        if (next >= ids.length) {
+                            throw new NoSuchElementException();
+                        }
+                        return SymbolTable.getClassHandle(ids[next++]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(keys.length);
+        for (int c = 0; c < keys.length; c++) {
+            out.writeChar(keys[c]);
+            Object container = containers[c];
+            if (container instanceof long[]) {
+                out.writeByte(BITMAP_CONTAINER);
+                out.writeInt(cardinalities[c]);
+                for (long word : (long[]) container) {
+                    out.writeLong(word);
+                }
+            } else {
+                char[] values = (char[]) container;
+                out.writeByte(ARRAY_CONTAINER);
+                out.writeInt(values.length);
+                for (char value : values) {
+                    out.writeChar(value);
+                }
+            }
+        }
+    }
+
+    public static ClassIdSet read(DataInput in) throws IOException {
+        int containerCount = in.readInt();
+        if (containerCount == 0) {
+            return EMPTY;
+        }
+        char[] keys = new char[containerCount];
+        Object[] containers = new Object[containerCount];
+        int[] cardinalities = new int[containerCount];
+        for (int c = 0; c < containerCount; c++) {
+            keys[c] = in.readChar();
+            byte kind = in.readByte();
+            cardinalities[c] = in.readInt();
+            if (kind == BITMAP_CONTAINER) {
+                long[] bitmap = new long[BITMAP_WORDS];
+                for (int word = 0; word < bitmap.length; word++) {
+                    bitmap[word] = in.readLong();
+                }
+                containers[c] = bitmap;
+            } else if (kind == ARRAY_CONTAINER) {
+                char[] values = new char[cardinalities[c]];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = in.readChar();
+                }
+                containers[c] = values;
+            } else {
+                throw new IOException("Unknown container kind " + kind);
+            }
+        }
+        return new ClassIdSet(keys, containers, cardinalities);
+    }
+}
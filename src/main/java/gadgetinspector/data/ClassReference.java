@@ -1,5 +1,8 @@
 package gadgetinspector.data;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 public class ClassReference {
     private final String name;
     private final String superClass;
@@ -60,33 +63,54 @@ public class ClassReference {
     }
 
     public Handle getHandle() {
-        return new Handle(name);
+        return Handle.of(name);
     }
 
     public static class Handle {
         private final String name;
+        private final int id;
+        private final int hashCode;
+        // Interned methods of this class by name and desc, read freely and added to while holding this handle; see
+        // SymbolTable
+        private final Map<String, Map<String, MethodReference.Handle>> methodHandles = new ConcurrentHashMap<>(4);
 
-        public Handle(String name) {
+        Handle(String name, int id) {
             this.name = name;
+            this.id = id;
+            this.hashCode = name != null ? name.hashCode() : 0;
+        }
+
+        /**
+         * @return The interned handle for the given internal class name
+         */
+        public static Handle of(String name) {
+            return SymbolTable.classHandle(name);
         }
 
         public String getName() {
             return name;
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
+        /**
+         * @return The dense ID of this class in the {@link SymbolTable}
+         */
+        public int getId() {
+            return id;
+        }
 
-            Handle handle = (Handle) o;
+        Map<String, Map<String, MethodReference.Handle>> getMethodHandles() {
+            return methodHandles;
+        }
 
-            return name != null ? name.equals(handle.name) : handle.name == null;
+        @Override
+        public boolean equals(Object o) {
+            // Handles are interned, so equal handles are the same instance
+            return this == o;
         }
 
         @Override
         public int hashCode() {
-            return name != null ? name.hashCode() : 0;
+            return hashCode;
         }
     }
 
@@ -105,7 +129,7 @@ public class ClassReference {
             Member[] members = new Member[memberEntries.length/3];
             for (int i = 0; i < members.length; i++) {
                 members[i] = new Member(memberEntries[3*i], Integer.parseInt(memberEntries[3*i+1]),
-                        new ClassReference.Handle(memberEntries[3*i+2]));
+                        ClassReference.Handle.of(memberEntries[3*i+2]));
             }
 
             return new ClassReference(
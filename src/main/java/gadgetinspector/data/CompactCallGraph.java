@@ -0,0 +1,129 @@
+package gadgetinspector.data;
+
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * A call graph in compressed sparse row form, indexed by {@link SymbolTable} method IDs. The outgoing edges of a
+ * caller are stored contiguously, from {@link #getEdgeStart(int)} up to {@link #getEdgeEnd(int)}, in packed arrays
+ * holding the target method ID and, for graphs built from {@link GraphCall}s, the caller and target argument
+ * indexes. No object is allocated per edge or per caller.
+ * <p>
+ * Edges of a caller keep the order in which they were given.
+ */
+public class CompactCallGraph {
+    private final BitSet callers;
+    private final int[] edgeOffsets;
+    private final int[] targets;
+    // Argument indexes fit a byte, since the JVM limits methods to 255 argument slots
+    private final byte[] callerArgIndexes;
+    private final byte[] targetArgIndexes;
+
+    private CompactCallGraph(BitSet callers, int[] edgeOffsets, int[] targets, byte[] callerArgIndexes,
+                             byte[] targetArgIndexes) {
+        this.callers = callers;
+        this.edgeOffsets = edgeOffsets;
+        this.targets = targets;
+        this.callerArgIndexes = callerArgIndexes;
+        this.targetArgIndexes = targetArgIndexes;
+    }
+
+    /**
+     * Builds the graph of which methods each method invokes. Callers invoking nothing are still recorded as callers.
+     */
+    public static CompactCallGraph fromMethodCalls(Collection<MethodCalls> methodCalls) {
+        BitSet callers = new BitSet();
+        int[] edgeCounts = new int[SymbolTable.getMethodCount() + 1];
+        int edgeCount = 0;
+        for (MethodCalls calls : methodCalls) {
+            int caller = calls.getCallerMethod().getId();
+            callers.set(caller);
+            edgeCounts[caller + 1] += calls.getTargetMethods().size();
+            edgeCount += calls.getTargetMethods().size();
+        }
+
+        int[] edgeOffsets = toOffsets(edgeCounts);
+        int[] fillPositions = edgeOffsets.clone();
+        int[] targets = new int[edgeCount];
+        for (MethodCalls calls : methodCalls) {
+            int caller = calls.getCallerMethod().getId();
+            for (MethodReference.Handle target : calls.getTargetMethods()) {
+                targets[fillPositions[caller]++] = target.getId();
+            }
+        }
+        return new CompactCallGraph(callers, edgeOffsets, targets, null, null);
+    }
+
+    /**
+     * Builds the graph of which method arguments flow into which arguments of invoked methods. Calls differing only
+     * in the caller argument path become separate edges.
+     */
+    public static CompactCallGraph fromGraphCalls(Collection<GraphCall> graphCalls) {
+        BitSet callers = new BitSet();
+        int[] edgeCounts = new int[SymbolTable.getMethodCount() + 1];
+        for (GraphCall graphCall : graphCalls) {
+            int caller = graphCall.getCallerMethod().getId();
+            callers.set(caller);
+            edgeCounts[caller + 1] += 1;
+        }
+
+        int[] edgeOffsets = toOffsets(edgeCounts);
+        int[] fillPositions = edgeOffsets.clone();
+        int[] targets = new int[graphCalls.size()];
+        byte[] callerArgIndexes = new byte[graphCalls.size()];
+        byte[] targetArgIndexes = new byte[graphCalls.size()];
+        for (GraphCall graphCall : graphCalls) {
+            int edge = fillPositions[graphCall.getCallerMethod().getId()]++;
+            targets[edge] = graphCall.getTargetMethod().getId();
+            callerArgIndexes[edge] = (byte) graphCall.getCallerArgIndex();
+            targetArgIndexes[edge] = (byte) graphCall.getTargetArgIndex();
+        }
+        return new CompactCallGraph(callers, edgeOffsets, targets, callerArgIndexes, targetArgIndexes);
+    }
+
+    // Turns per-caller edge counts, shifted up by one, into each caller's first edge index
+    private static int[] toOffsets(int[] edgeCounts) {
+        for (int i = 1; i < edgeCounts.length; i++) {
+            edgeCounts[i] += edgeCounts[i - 1];
+        }
+        return edgeCounts;
+    }
+
+    /**
+     * @return The number of method IDs the graph covers; every caller and target ID is below this
+     */
+    public int getMethodCount() {
+        return edgeOffsets.length - 1;
+    }
+
+    public int getEdgeCount() {
+        return targets.length;
+    }
+
+    /**
+     * @return Whether the method was given as a caller, even if it has no outgoing edges
+     */
+    public boolean isCaller(int method) {
+        return callers.get(method);
+    }
+
+    public int getEdgeStart(int caller) {
+        return caller < getMethodCount() ? edgeOffsets[caller] : 0;
+    }
+
+    public int getEdgeEnd(int caller) {
+        return caller < getMethodCount() ? edgeOffsets[caller + 1] : 0;
+    }
+
+    public int getTarget(int edge) {
+        return targets[edge];
+    }
+
+    public int getCallerArgIndex(int edge) {
+        return callerArgIndexes[edge] & 0xFF;
+    }
+
+    public int getTargetArgIndex(int edge) {
+        return targetArgIndexes[edge] & 0xFF;
+    }
+}
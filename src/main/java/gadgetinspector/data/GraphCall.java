@@ -66,8 +66,8 @@ public class GraphCall {
         @Override
         public GraphCall parse(String[] fields) {
             return new GraphCall(
-                    new MethodReference.Handle(new ClassReference.Handle(fields[0]), fields[1], fields[2]),
-                    new MethodReference.Handle(new ClassReference.Handle(fields[3]), fields[4], fields[5]),
+                    MethodReference.Handle.of(ClassReference.Handle.of(fields[0]), fields[1], fields[2]),
+                    MethodReference.Handle.of(ClassReference.Handle.of(fields[3]), fields[4], fields[5]),
                     Integer.parseInt(fields[6]),
                     fields[7],
                     Integer.parseInt(fields[8]));
@@ -3,106 +3,246 @@ package gadgetinspector.data;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class InheritanceDeriver {
     private static final Logger LOGGER = LoggerFactory.getLogger(InheritanceDeriver.class);
 
+    /** Levels smaller than this are derived on the calling thread. */
+    private static final int PARALLEL_LEVEL_SIZE = 1024;
+
     public static InheritanceMap derive(Map<ClassReference.Handle, ClassReference> classMap) {
+        return derive(classMap, 1);
+    }
+
+    /**
+     * Computes the set of all ancestors of every class. Classes are processed level by level in topological order,
+     * starting from the classes without known parents, so the ancestors of a class are simply the union of its
+     * immediate parents and their already computed ancestors. The classes of a level do not depend on each other and
+     * are derived in parallel.
+     *
+     * @param parallelism Number of threads to derive large levels with
+     */
+    public static InheritanceMap derive(Map<ClassReference.Handle, ClassReference> classMap, int parallelism) {
         LOGGER.debug("Calculating inheritance for " + (classMap.size()) + " classes...");
-        Map<ClassReference.Handle, Set<ClassReference.Handle>> implicitInheritance = new HashMap<>();
-        for (ClassReference classReference : classMap.values()) {
-            if (implicitInheritance.containsKey(classReference.getHandle())) {
-                throw new IllegalStateException("Already derived implicit classes for " + classReference.getName());
+        List<ClassReference> classes = new ArrayList<>(classMap.values());
+        Map<ClassReference.Handle, Integer> classIndexes = new HashMap<>();
+        for (int i = 0; i < classes.size(); i++) {
+            classIndexes.put(classes.get(i).getHandle(), i);
+        }
+
+        // Immediate parents which are known classes, and the reverse edges to walk down the hierarchy
+        int[][] parents = new int[classes.size()][];
+        int[] pendingParents = new int[classes.size()];
+        List<List<Integer>> children = new ArrayList<>(classes.size());
+        for (int i = 0; i < classes.size(); i++) {
+            children.add(new ArrayList<>(0));
+        }
+        for (int i = 0; i < classes.size(); i++) {
+            Set<Integer> classParents = new LinkedHashSet<>();
+            ClassReference classReference = classes.get(i);
+            List<String> parentNames = new ArrayList<>(Arrays.asList(classReference.getInterfaces()));
+            if (classReference.getSuperClass() != null) {
+                parentNames.add(0, classReference.getSuperClass());
             }
-            Set<ClassReference.Handle> allParents = new HashSet<>();
+            for (String parentName : parentNames) {
+                Integer parent = classIndexes.get(ClassReference.Handle.of(parentName));
+                if (parent == null) {
+                    LOGGER.debug("No class id for " + parentName);
+                    continue;
+                }
+                classParents.add(parent);
+            }
+            parents[i] = new int[classParents.size()];
+            int p = 0;
+            for (int parent : classParents) {
+                parents[i][p++] = parent;
+                children.get(parent).add(i);
+            }
+            pendingParents[i] = parents[i].length;
+        }
+
+        // Filled in by index, each slot written by exactly one task
+        List<Set<ClassReference.Handle>> allParents = new ArrayList<>(Collections.nCopies(classes.size(), null));
+        List<Integer> level = new ArrayList<>();
+        for (int i = 0; i < classes.size(); i++) {
+            if (pendingParents[i] == 0) {
+                level.add(i);
+            }
+        }
 
-            getAllParents(classReference, classMap, allParents);
+        ExecutorService executor = parallelism > 1 ? Executors.newFixedThreadPool(parallelism) : null;
+        try {
+            int derived = 0;
+            while (!level.isEmpty()) {
+                deriveLevel(level, classes, parents, allParents, executor, parallelism);
+                derived += level.size();
 
-            implicitInheritance.put(classReference.getHandle(), allParents);
+                List<Integer> nextLevel = new ArrayList<>();
+                for (int i : level) {
+                    for (int child : children.get(i)) {
+                        if (--pendingParents[child] == 0) {
+                            nextLevel.add(child);
+                        }
+                    }
+                }
+                level = nextLevel;
+            }
+
+            if (derived < classes.size()) {
+                // Only a malformed classpath has an inheritance cycle; fall back to walking those classes one by one
+                for (int i = 0; i < classes.size(); i++) {
+                    if (allParents.get(i) == null) {
+                        LOGGER.debug("Inheritance cycle through " + classes.get(i).getName());
+                        allParents.set(i, walkParents(i, classes, parents));
+                    }
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+
+        Map<ClassReference.Handle, Set<ClassReference.Handle>> implicitInheritance = new HashMap<>();
+        for (int i = 0; i < classes.size(); i++) {
+            implicitInheritance.put(classes.get(i).getHandle(), allParents.get(i));
         }
         return new InheritanceMap(implicitInheritance);
     }
 
-    private static void getAllParents(ClassReference classReference, Map<ClassReference.Handle, ClassReference> classMap, Set<ClassReference.Handle> allParents) {
-        Set<ClassReference.Handle> parents = new HashSet<>();
-        if (classReference.getSuperClass() != null) {
-            parents.add(new ClassReference.Handle(classReference.getSuperClass()));
-        }
-        for (String iface : classReference.getInterfaces()) {
-            parents.add(new ClassReference.Handle(iface));
+    private static void deriveLevel(List<Integer> level, List<ClassReference> classes, int[][] parents,
+                                    List<Set<ClassReference.Handle>> allParents, ExecutorService executor,
+                                    int parallelism) {
+        if (executor == null || level.size() < PARALLEL_LEVEL_SIZE) {
+            for (int i : level) {
+                allParents.set(i, unionParents(i, classes, parents, allParents));
+            }
+            return;
         }
 
-        for (ClassReference.Handle immediateParent : parents) {
-            ClassReference parentClassReference = classMap.get(immediateParent);
-            if (parentClassReference == null) {
-                LOGGER.debug("No class id for " + immediateParent.getName());
-                continue;
+        int chunkSize = (level.size() + parallelism - 1) / parallelism;
+        List<Future<?>> futures = new ArrayList<>();
+        for (int start = 0; start < level.size(); start += chunkSize) {
+            List<Integer> chunk = level.subList(start, Math.min(start + chunkSize, level.size()));
+            futures.add(executor.submit(() -> {
+                for (int i : chunk) {
+                    allParents.set(i, unionParents(i, classes, parents, allParents));
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
             }
-            allParents.add(parentClassReference.getHandle());
-            getAllParents(parentClassReference, classMap, allParents);
         }
     }
 
-    public static Map<MethodReference.Handle, Set<MethodReference.Handle>> getAllMethodImplementations(
-            InheritanceMap inheritanceMap, Map<MethodReference.Handle, MethodReference> methodMap) {
-
-        Map<ClassReference.Handle, Set<MethodReference.Handle>> methodsByClass = new HashMap<>();
-        for (MethodReference.Handle method : methodMap.keySet()) {
-            ClassReference.Handle classReference = method.getClassReference();
-            if (!methodsByClass.containsKey(classReference)) {
-                Set<MethodReference.Handle> methods = new HashSet<>();
-                methods.add(method);
-                methodsByClass.put(classReference, methods);
-            } else {
-                methodsByClass.get(classReference).add(method);
-            }
+    private static Set<ClassReference.Handle> unionParents(int i, List<ClassReference> classes, int[][] parents,
+                                                           List<Set<ClassReference.Handle>> allParents) {
+        Set<ClassReference.Handle> result = new HashSet<>();
+        for (int parent : parents[i]) {
+            result.add(classes.get(parent).getHandle());
+            result.addAll(allParents.get(parent));
         }
+        return result;
+    }
 
-        Map<ClassReference.Handle, Set<ClassReference.Handle>> subClassMap = new HashMap<>();
-        for (Map.Entry<ClassReference.Handle, Set<ClassReference.Handle>> entry : inheritanceMap.entrySet()) {
-            for (ClassReference.Handle parent : entry.getValue()) {
-                if (!subClassMap.containsKey(parent)) {
-                    Set<ClassReference.Handle> subClasses = new HashSet<>();
-                    subClasses.add(entry.getKey());
-                    subClassMap.put(parent, subClasses);
-                } else {
-                    subClassMap.get(parent).add(entry.getKey());
+    private static Set<ClassReference.Handle> walkParents(int i, List<ClassReference> classes, int[][] parents) {
+        Set<ClassReference.Handle> result = new HashSet<>();
+        Deque<Integer> pending = new ArrayDeque<>();
+        for (int parent : parents[i]) {
+            pending.add(parent);
+        }
+        while (!pending.isEmpty()) {
+            int parent = pending.remove();
+            if (result.add(classes.get(parent).getHandle())) {
+                for (int grandParent : parents[parent]) {
+                    pending.add(grandParent);
                 }
             }
         }
+        return result;
+    }
 
-        Map<MethodReference.Handle, Set<MethodReference.Handle>> methodImplMap = new HashMap<>();
-        for (MethodReference method : methodMap.values()) {
-            // Static methods cannot be overriden
-            if (method.isStatic()) {
-                continue;
-            }
+    public static Map<MethodReference.Handle, Set<MethodReference.Handle>> getAllMethodImplementations(
+            InheritanceMap inheritanceMap, Map<MethodReference.Handle, MethodReference> methodMap) {
+        return getAllMethodImplementations(inheritanceMap, methodMap, 1);
+    }
 
-            Set<MethodReference.Handle> overridingMethods = new HashSet<>();
-            Set<ClassReference.Handle> subClasses = subClassMap.get(method.getClassReference());
-            if (subClasses != null) {
-                for (ClassReference.Handle subClass : subClasses) {
-                    // This class extends ours; see if it has a matching method
-                    Set<MethodReference.Handle> subClassMethods = methodsByClass.get(subClass);
-                    if (subClassMethods != null) {
-                        for (MethodReference.Handle subClassMethod : subClassMethods) {
-                            if (subClassMethod.getName().equals(method.getName()) && subClassMethod.getDesc().equals(method.getDesc())) {
-                                overridingMethods.add(subClassMethod);
-                            }
-                        }
+    /**
+     * Resolves the overriding methods of every method up front. Most callers only need a few of them and should ask
+     * {@link MethodImplementations} directly instead.
+     *
+     * @param parallelism Number of threads to resolve overrides with
+     */
+    public static Map<MethodReference.Handle, Set<MethodReference.Handle>> getAllMethodImplementations(
+            InheritanceMap inheritanceMap, Map<MethodReference.Handle, MethodReference> methodMap, int parallelism) {
+        MethodImplementations methodImplementations = new MethodImplementations(inheritanceMap, methodMap);
+
+        List<MethodReference.Handle> methods = new ArrayList<>(methodMap.keySet());
+        List<Map<MethodReference.Handle, Set<MethodReference.Handle>>> results = new ArrayList<>();
+        if (parallelism == 1) {
+            results.add(findOverrides(methodImplementations, methods));
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+            try {
+                int chunkSize = (methods.size() + parallelism - 1) / parallelism;
+                List<Future<Map<MethodReference.Handle, Set<MethodReference.Handle>>>> futures = new ArrayList<>();
+                for (int start = 0; start < methods.size(); start += chunkSize) {
+                    List<MethodReference.Handle> chunk = methods.subList(start, Math.min(start + chunkSize, methods.size()));
+                    futures.add(executor.submit(() -> findOverrides(methodImplementations, chunk)));
+                }
+                for (Future<Map<MethodReference.Handle, Set<MethodReference.Handle>>> future : futures) {
+                    try {
+                        results.add(future.get());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException(e);
+                    } catch (ExecutionException e) {
+                        throw new IllegalStateException(e.getCause());
                     }
                 }
+            } finally {
+                executor.shutdownNow();
             }
+        }
 
-            if (overridingMethods.size() > 0) {
-                methodImplMap.put(method.getHandle(), overridingMethods);
-            }
+        Map<MethodReference.Handle, Set<MethodReference.Handle>> methodImplMap = new HashMap<>();
+        for (Map<MethodReference.Handle, Set<MethodReference.Handle>> result : results) {
+            methodImplMap.putAll(result);
         }
+        return methodImplMap;
+    }
 
+    private static Map<MethodReference.Handle, Set<MethodReference.Handle>> findOverrides(
+            MethodImplementations methodImplementations, List<MethodReference.Handle> methods) {
+        Map<MethodReference.Handle, Set<MethodReference.Handle>> methodImplMap = new HashMap<>();
+        for (MethodReference.Handle method : methods) {
+            Set<MethodReference.Handle> overridingMethods = methodImplementations.getOverridingMethods(method);
+            if (overridingMethods != null) {
+                methodImplMap.put(method, overridingMethods);
+            }
+        }
         return methodImplMap;
     }
 }
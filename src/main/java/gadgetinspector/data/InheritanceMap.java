@@ -1,85 +1,176 @@
 package gadgetinspector.data;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 
+/**
+ * The ancestors and descendants of each class, as {@link ClassIdSet}s indexed by {@link SymbolTable} class ID, so
+ * subtype queries are a bit test rather than a hash lookup.
+ * <p>
+ * inheritanceMap.dat is binary: since class IDs are only meaningful within one process, it holds the names of the
+ * classes it refers to, followed by each class's ancestors as a set of indexes into those names.
+ */
 public class InheritanceMap {
-    private final Map<ClassReference.Handle, Set<ClassReference.Handle>> inheritanceMap;
-    private final Map<ClassReference.Handle, Set<ClassReference.Handle>> subClassMap;
+    private static final Path DATA_FILE = Paths.get("inheritanceMap.dat");
+    private static final int MAGIC = 0x47494d31;
+
+    // Indexed by class ID; null for classes without an entry
+    private final ClassIdSet[] superClasses;
+    private final ClassIdSet[] subClasses;
 
     public InheritanceMap(Map<ClassReference.Handle, Set<ClassReference.Handle>> inheritanceMap) {
-        this.inheritanceMap = inheritanceMap;
-        subClassMap = new HashMap<>();
+        superClasses = new ClassIdSet[SymbolTable.getClassCount()];
         for (Map.Entry<ClassReference.Handle, Set<ClassReference.Handle>> entry : inheritanceMap.entrySet()) {
-            ClassReference.Handle child = entry.getKey();
+            int[] parents = new int[entry.getValue().size()];
+            int i = 0;
             for (ClassReference.Handle parent : entry.getValue()) {
-                subClassMap.computeIfAbsent(parent, k -> new HashSet<>()).add(child);
+                parents[i++] = parent.getId();
+            }
+            superClasses[entry.getKey().getId()] = ClassIdSet.of(parents);
+        }
+        subClasses = invert(superClasses);
+    }
+
+    private InheritanceMap(ClassIdSet[] superClasses) {
+        this.superClasses = superClasses;
+        this.subClasses = invert(superClasses);
+    }
+
+    private static ClassIdSet[] invert(ClassIdSet[] superClasses) {
+        // Children are visited in ascending ID order, so each parent's range of children comes out sorted
+        int[] offsets = new int[superClasses.length + 1];
+        for (ClassIdSet parents : superClasses) {
+            if (parents != null) {
+                for (int parent : parents.toArray()) {
+                    offsets[parent + 1]++;
+                }
+            }
+        }
+        for (int i = 1; i < offsets.length; i++) {
+            offsets[i] += offsets[i - 1];
+        }
+        int[] fillPositions = offsets.clone();
+        int[] children = new int[offsets[superClasses.length]];
+        for (int child = 0; child < superClasses.length; child++) {
+            if (superClasses[child] != null) {
+                for (int parent : superClasses[child].toArray()) {
+                    children[fillPositions[parent]++] = child;
+                }
+            }
+        }
+
+        ClassIdSet[] subClasses = new ClassIdSet[superClasses.length];
+        for (int parent = 0; parent < superClasses.length; parent++) {
+            if (offsets[parent] < offsets[parent + 1]) {
+                subClasses[parent] = ClassIdSet.ofSorted(children, offsets[parent], offsets[parent + 1]);
             }
         }
+        return subClasses;
     }
 
-    public Set<Map.Entry<ClassReference.Handle, Set<ClassReference.Handle>>> entrySet() {
-        return inheritanceMap.entrySet();
+    private static ClassIdSet get(ClassIdSet[] sets, ClassReference.Handle clazz) {
+        int id = clazz.getId();
+        return id >= 0 && id < sets.length ? sets[id] : null;
     }
 
     public Set<ClassReference.Handle> getSuperClasses(ClassReference.Handle clazz) {
-        Set<ClassReference.Handle> parents = inheritanceMap.get(clazz);
+        ClassIdSet parents = get(superClasses, clazz);
         if (parents == null) {
             return null;
         }
-        return Collections.unmodifiableSet(parents);
+        return parents.asHandles();
     }
 
     public boolean isSubclassOf(ClassReference.Handle clazz, ClassReference.Handle superClass) {
-        Set<ClassReference.Handle> parents = inheritanceMap.get(clazz);
+        ClassIdSet parents = get(superClasses, clazz);
         if (parents == null) {
             return false;
         }
-        return parents.contains(superClass);
+        return parents.contains(superClass.getId());
     }
 
     public Set<ClassReference.Handle> getSubClasses(ClassReference.Handle clazz) {
-        Set<ClassReference.Handle> subClasses = subClassMap.get(clazz);
-        if (subClasses == null) {
+        ClassIdSet children = get(subClasses, clazz);
+        if (children == null) {
             return null;
         }
-        return Collections.unmodifiableSet(subClasses);
+        return children.asHandles();
     }
 
     public void save() throws IOException {
-        DataLoader.saveData(Paths.get("inheritanceMap.dat"), new InheritanceMapFactory(), inheritanceMap.entrySet());
-    }
+        // Local indexes are handed out in class ID order, which keeps every set sorted when translated
+        boolean[] referenced = new boolean[superClasses.length];
+        for (int id = 0; id < superClasses.length; id++) {
+            if (superClasses[id] != null) {
+                referenced[id] = true;
+                for (int parent : superClasses[id].toArray()) {
+                    referenced[parent] = true;
+                }
+            }
+        }
+        int[] localIndexes = new int[superClasses.length];
+        List<String> names = new ArrayList<>();
+        for (int id = 0; id < referenced.length; id++) {
+            if (referenced[id]) {
+                localIndexes[id] = names.size();
+                names.add(SymbolTable.getClassHandle(id).getName());
+            }
+        }
 
-    public static InheritanceMap load() throws IOException {
-        Map<ClassReference.Handle, Set<ClassReference.Handle>> inheritanceMap = new HashMap<>();
-        for (Map.Entry<ClassReference.Handle, Set<ClassReference.Handle>> entry : DataLoader.loadData(
-                Paths.get("inheritanceMap.dat"), new InheritanceMapFactory())) {
-            inheritanceMap.put(entry.getKey(), entry.getValue());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(DATA_FILE)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(names.size());
+            for (String name : names) {
+                out.writeUTF(name);
+            }
+            int classCount = 0;
+            for (ClassIdSet parents : superClasses) {
+                if (parents != null) {
+                    classCount++;
+                }
+            }
+            out.writeInt(classCount);
+            for (int id = 0; id < superClasses.length; id++) {
+                if (superClasses[id] != null) {
+                    int[] parents = superClasses[id].toArray();
+                    for (int i = 0; i < parents.length; i++) {
+                        parents[i] = localIndexes[parents[i]];
+                    }
+                    out.writeInt(localIndexes[id]);
+                    ClassIdSet.ofSorted(parents, 0, parents.length).write(out);
+                }
+            }
         }
-        return new InheritanceMap(inheritanceMap);
     }
 
-    private static class InheritanceMapFactory implements DataFactory<Map.Entry<ClassReference.Handle, Set<ClassReference.Handle>>> {
-        @Override
-        public Map.Entry<ClassReference.Handle, Set<ClassReference.Handle>> parse(String[] fields) {
-            ClassReference.Handle clazz = new ClassReference.Handle(fields[0]);
-            Set<ClassReference.Handle> superClasses = new HashSet<>();
-            for (int i = 1; i < fields.length; i++) {
-                superClasses.add(new ClassReference.Handle(fields[i]));
+    public static InheritanceMap load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(DATA_FILE)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Unrecognized format in " + DATA_FILE + "; rerun method discovery to rebuild it");
+            }
+            ClassReference.Handle[] handles = new ClassReference.Handle[in.readInt()];
+            for (int i = 0; i < handles.length; i++) {
+                handles[i] = ClassReference.Handle.of(in.readUTF());
             }
-            return new AbstractMap.SimpleEntry<>(clazz, superClasses);
-        }
 
-        @Override
-        public String[] serialize(Map.Entry<ClassReference.Handle, Set<ClassReference.Handle>> obj) {
-            final String[] fields = new String[obj.getValue().size()+1];
-            fields[0] = obj.getKey().getName();
-            int i = 1;
-            for (ClassReference.Handle handle : obj.getValue()) {
-                fields[i++] = handle.getName();
+            ClassIdSet[] superClasses = new ClassIdSet[SymbolTable.getClassCount()];
+            int classCount = in.readInt();
+            for (int c = 0; c < classCount; c++) {
+                ClassReference.Handle clazz = handles[in.readInt()];
+                int[] parents = ClassIdSet.read(in).toArray();
+                for (int i = 0; i < parents.length; i++) {
+                    parents[i] = handles[parents[i]].getId();
+                }
+                superClasses[clazz.getId()] = ClassIdSet.of(parents);
             }
-            return fields;
+            return new InheritanceMap(superClasses);
         }
     }
 }
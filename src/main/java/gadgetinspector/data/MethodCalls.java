@@ -0,0 +1,56 @@
+package gadgetinspector.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The methods invoked from the body of a method, regardless of which arguments flow into them, in the order they are
+ * first invoked. Methods without a body or without invocations have an empty list.
+ */
+public class MethodCalls {
+    private final MethodReference.Handle callerMethod;
+    private final List<MethodReference.Handle> targetMethods;
+
+    public MethodCalls(MethodReference.Handle callerMethod, List<MethodReference.Handle> targetMethods) {
+        this.callerMethod = callerMethod;
+        this.targetMethods = targetMethods;
+    }
+
+    public MethodReference.Handle getCallerMethod() {
+        return callerMethod;
+    }
+
+    public List<MethodReference.Handle> getTargetMethods() {
+        return targetMethods;
+    }
+
+    public static class Factory implements DataFactory<MethodCalls> {
+
+        @Override
+        public MethodCalls parse(String[] fields) {
+            List<MethodReference.Handle> targetMethods = new ArrayList<>((fields.length - 3) / 3);
+            for (int i = 3; i + 2 < fields.length; i += 3) {
+                targetMethods.add(MethodReference.Handle.of(ClassReference.Handle.of(fields[i]), fields[i+1], fields[i+2]));
+            }
+            return new MethodCalls(
+                    MethodReference.Handle.of(ClassReference.Handle.of(fields[0]), fields[1], fields[2]),
+                    targetMethods);
+        }
+
+        @Override
+        public String[] serialize(MethodCalls obj) {
+            // The caller is written once, followed by the class, name and desc of each target
+            String[] fields = new String[3 + 3 * obj.targetMethods.size()];
+            fields[0] = obj.callerMethod.getClassReference().getName();
+            fields[1] = obj.callerMethod.getName();
+            fields[2] = obj.callerMethod.getDesc();
+            for (int i = 0; i < obj.targetMethods.size(); i++) {
+                MethodReference.Handle targetMethod = obj.targetMethods.get(i);
+                fields[3 + 3*i] = targetMethod.getClassReference().getName();
+                fields[4 + 3*i] = targetMethod.getName();
+                fields[5 + 3*i] = targetMethod.getDesc();
+            }
+            return fields;
+        }
+    }
+}
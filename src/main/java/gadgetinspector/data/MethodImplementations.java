@@ -0,0 +1,64 @@
+package gadgetinspector.data;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves, on request, the methods of subclasses which override a given method. Methods are indexed by name and
+ * descriptor up front, so resolving one method only looks at the classes declaring its signature, or at its subclasses
+ * if there are fewer of those. Safe for concurrent use once constructed.
+ */
+public class MethodImplementations {
+    private final InheritanceMap inheritanceMap;
+    private final Map<MethodReference.Handle, MethodReference> methodMap;
+    // Name and desc concatenated are unambiguous, since a desc always starts with '('
+    private final Map<String, Map<ClassReference.Handle, MethodReference.Handle>> methodsBySignature = new HashMap<>();
+
+    public MethodImplementations(InheritanceMap inheritanceMap, Map<MethodReference.Handle, MethodReference> methodMap) {
+        this.inheritanceMap = inheritanceMap;
+        this.methodMap = methodMap;
+        for (MethodReference.Handle method : methodMap.keySet()) {
+            methodsBySignature.computeIfAbsent(method.getName() + method.getDesc(), k -> new HashMap<>())
+                    .put(method.getClassReference(), method);
+        }
+    }
+
+    /**
+     * @return The methods overriding the given one, or null if there are none or the method is static or unknown
+     */
+    public Set<MethodReference.Handle> getOverridingMethods(MethodReference.Handle method) {
+        MethodReference methodReference = methodMap.get(method);
+        // Static methods cannot be overriden
+        if (methodReference == null || methodReference.isStatic()) {
+            return null;
+        }
+
+        Set<ClassReference.Handle> subClasses = inheritanceMap.getSubClasses(method.getClassReference());
+        if (subClasses == null) {
+            return null;
+        }
+        Map<ClassReference.Handle, MethodReference.Handle> implementations =
+                methodsBySignature.get(method.getName() + method.getDesc());
+
+        Set<MethodReference.Handle> overridingMethods = new HashSet<>();
+        if (implementations.size() <= subClasses.size()) {
+            for (Map.Entry<ClassReference.Handle, MethodReference.Handle> implementation : implementations.entrySet()) {
+                if (inheritanceMap.isSubclassOf(implementation.getKey(), method.getClassReference())) {
+                    overridingMethods.add(implementation.getValue());
+                }
+            }
+        } else {
+            for (ClassReference.Handle subClass : subClasses) {
+                // This class extends ours; see if it has a matching method
+                MethodReference.Handle subClassMethod = implementations.get(subClass);
+                if (subClassMethod != null) {
+                    overridingMethods.add(subClassMethod);
+                }
+            }
+        }
+
+        return overridingMethods.size() > 0 ? overridingMethods : null;
+    }
+}
@@ -30,18 +30,33 @@ public class MethodReference {
     }
 
     public Handle getHandle() {
-        return new Handle(classReference, name, desc);
+        return Handle.of(classReference, name, desc);
     }
 
     public static class Handle {
         private final ClassReference.Handle classReference;
         private final String name;
         private final String desc;
+        private final int id;
+        private final int hashCode;
 
-        public Handle(ClassReference.Handle classReference, String name, String desc) {
+        Handle(ClassReference.Handle classReference, String name, String desc, int id) {
             this.classReference = classReference;
             this.name = name;
             this.desc = desc;
+            this.id = id;
+
+            int result = classReference != null ? classReference.hashCode() : 0;
+            result = 31 * result + (name != null ? name.hashCode() : 0);
+            result = 31 * result + (desc != null ? desc.hashCode() : 0);
+            this.hashCode = result;
+        }
+
+        /**
+         * @return The interned handle for the given method
+         */
+        public static Handle of(ClassReference.Handle classReference, String name, String desc) {
+            return SymbolTable.methodHandle(classReference, name, desc);
         }
 
         public ClassReference.Handle getClassReference() {
@@ -56,25 +71,22 @@ public class MethodReference {
             return desc;
         }
 
+        /**
+         * @return The dense ID of this method in the {@link SymbolTable}
+         */
+        public int getId() {
+            return id;
+        }
+
         @Override
         public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-
-            Handle handle = (Handle) o;
-
-            if (classReference != null ? !classReference.equals(handle.classReference) : handle.classReference != null)
-                return false;
-            if (name != null ? !name.equals(handle.name) : handle.name != null) return false;
-            return desc != null ? desc.equals(handle.desc) : handle.desc == null;
+            // Handles are interned, so equal handles are the same instance
+            return this == o;
         }
 
         @Override
         public int hashCode() {
-            int result = classReference != null ? classReference.hashCode() : 0;
-            result = 31 * result + (name != null ? name.hashCode() : 0);
-            result = 31 * result + (desc != null ? desc.hashCode() : 0);
-            return result;
+            return hashCode;
         }
     }
 
@@ -83,7 +95,7 @@ public class MethodReference {
         @Override
         public MethodReference parse(String[] fields) {
             return new MethodReference(
-                    new ClassReference.Handle(fields[0]),
+                    ClassReference.Handle.of(fields[0]),
                     fields[1],
                     fields[2],
                     Boolean.parseBoolean(fields[3]));
@@ -0,0 +1,192 @@
+package gadgetinspector.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The passthrough dataflow of each method: which of its arguments, counting {@code this} as argument 0, taint its
+ * return value. Summaries are indexed by {@link SymbolTable} method ID, each a bitmask of argument indexes, so looking
+ * one up is an array read and applying it a walk over its set bits. The rare method with an argument index past 63
+ * keeps its whole summary in a {@link BitSet} on the side. A method without a summary and one whose return value no
+ * argument taints are the same.
+ * <p>
+ * Summaries only ever grow. Adding to them is synchronized; reading them is not, and relies on the caller ordering
+ * its reads after the writes it needs to see, as the passthrough analysis does level by level.
+ * <p>
+ * passthrough.dat is binary: the names of the methods with a non-empty summary, followed by a fixed-width record of
+ * each one's argument bits, and the summaries wider than 64 arguments.
+ */
+public class PassthroughSummaries {
+    private static final int MAGIC = 0x47495031;
+
+    private volatile long[] args;
+    // The whole summary, by method ID, of the methods with an argument index past 63
+    private final Map<Integer, BitSet> wideArgs = new ConcurrentHashMap<>();
+
+    public PassthroughSummaries() {
+        args = new long[SymbolTable.getMethodCount()];
+    }
+
+    /**
+     * @return The bits of the arguments below 64 which taint the method's return value
+     */
+    public long getArgs(MethodReference.Handle method) {
+        long[] args = this.args;
+        int id = method.getId();
+        return id < args.length ? args[id] : 0;
+    }
+
+    /**
+     * @return The arguments which taint the method's return value, if any of them is past 63, otherwise null
+     */
+    public BitSet getWideArgs(MethodReference.Handle method) {
+        return wideArgs.isEmpty() ? null : wideArgs.get(method.getId());
+    }
+
+    public boolean contains(MethodReference.Handle method) {
+        return getArgs(method) != 0 || getWideArgs(method) != null;
+    }
+
+    /**
+     * Adds the given arguments to the method's summary.
+     *
+     * @return Whether the summary grew
+     */
+    public synchronized boolean addArgs(MethodReference.Handle method, BitSet methodArgs) {
+        int id = method.getId();
+        if (id >= args.length) {
+            args = Arrays.copyOf(args, Math.max(id + 1, SymbolTable.getMethodCount()));
+        }
+
+        long[] words = methodArgs.toLongArray();
+        long lowArgs = words.length > 0 ? words[0] : 0;
+        boolean grown = (args[id] | lowArgs) != args[id];
+        args[id] |= lowArgs;
+
+        BitSet wide = wideArgs.get(id);
+        if (wide != null || words.length > 1) {
+            // Kept whole, and replaced rather than modified so readers never see a set being updated
+            BitSet grownWide = (BitSet) (wide != null ? wide : BitSet.valueOf(new long[]{args[id]})).clone();
+            grownWide.or(methodArgs);
+            if (!grownWide.equals(wide)) {
+                wideArgs.put(id, grownWide);
+                grown = true;
+            }
+        }
+        return grown;
+    }
+
+    public synchronized void addAll(PassthroughSummaries summaries) {
+        for (MethodReference.Handle method : summaries.getMethods()) {
+            BitSet wide = summaries.getWideArgs(method);
+            addArgs(method, wide != null ? wide : BitSet.valueOf(new long[]{summaries.getArgs(method)}));
+        }
+    }
+
+    /**
+     * @return The methods with a non-empty summary
+     */
+    public synchronized List<MethodReference.Handle> getMethods() {
+        List<MethodReference.Handle> methods = new ArrayList<>();
+        for (int id = 0; id < args.length; id++) {
+            if (args[id] != 0 || wideArgs.containsKey(id)) {
+                methods.add(SymbolTable.getMethodHandle(id));
+            }
+        }
+        return methods;
+    }
+
+    public synchronized void save(Path dataFile) throws IOException {
+        List<MethodReference.Handle> methods = getMethods();
+        Map<ClassReference.Handle, Integer> classIndexes = new HashMap<>();
+        List<String> classNames = new ArrayList<>();
+        for (MethodReference.Handle method : methods) {
+            if (!classIndexes.containsKey(method.getClassReference())) {
+                classIndexes.put(method.getClassReference(), classNames.size());
+                classNames.add(method.getClassReference().getName());
+            }
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(dataFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(classNames.size());
+            for (String className : classNames) {
+                out.writeUTF(className);
+            }
+            out.writeInt(methods.size());
+            for (MethodReference.Handle method : methods) {
+                out.writeInt(classIndexes.get(method.getClassReference()));
+                out.writeUTF(method.getName());
+                out.writeUTF(method.getDesc());
+            }
+            for (MethodReference.Handle method : methods) {
+                out.writeLong(args[method.getId()]);
+            }
+
+            out.writeInt(wideArgs.size());
+            for (int i = 0; i < methods.size(); i++) {
+                BitSet wide = wideArgs.get(methods.get(i).getId());
+                if (wide != null) {
+                    long[] words = wide.toLongArray();
+                    out.writeInt(i);
+                    out.writeInt(words.length);
+                    for (long word : words) {
+                        out.writeLong(word);
+                    }
+                }
+            }
+        }
+    }
+
+    public static PassthroughSummaries load(Path dataFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(dataFile)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Unrecognized format in " + dataFile + "; rerun passthrough discovery to rebuild it");
+            }
+            ClassReference.Handle[] classes = new ClassReference.Handle[in.readInt()];
+            for (int i = 0; i < classes.length; i++) {
+                classes[i] = ClassReference.Handle.of(in.readUTF());
+            }
+            MethodReference.Handle[] methods = new MethodReference.Handle[in.readInt()];
+            for (int i = 0; i < methods.length; i++) {
+                methods[i] = MethodReference.Handle.of(classes[in.readInt()], in.readUTF(), in.readUTF());
+            }
+
+            PassthroughSummaries summaries = new PassthroughSummaries();
+            for (MethodReference.Handle method : methods) {
+                summaries.addArgs(method, BitSet.valueOf(new long[]{in.readLong()}));
+            }
+            int wideCount = in.readInt();
+            for (int w = 0; w < wideCount; w++) {
+                MethodReference.Handle method = methods[in.readInt()];
+                long[] words = new long[in.readInt()];
+                for (int i = 0; i < words.length; i++) {
+                    words[i] = in.readLong();
+                }
+                summaries.addArgs(method, BitSet.valueOf(words));
+            }
+            return summaries;
+        }
+    }
+
+    /**
+     * @return Whether the file holds summaries in the format this version reads
+     */
+    public static boolean isCurrentFormat(Path dataFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(dataFile)))) {
+            return Files.size(dataFile) >= 4 && in.readInt() == MAGIC;
+        }
+    }
+}
@@ -22,7 +22,7 @@ public class Source {
         @Override
         public Source parse(String[] fields) {
             return new Source(
-                    new MethodReference.Handle(new ClassReference.Handle(fields[0]), fields[1], fields[2]),
+                    MethodReference.Handle.of(ClassReference.Handle.of(fields[0]), fields[1], fields[2]),
                     Integer.parseInt(fields[3])
             );
         }
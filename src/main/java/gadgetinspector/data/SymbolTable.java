@@ -0,0 +1,106 @@
+package gadgetinspector.data;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns class and method handles. Each distinct class name, and each distinct owner, name and desc triple, maps to
+ * a single handle instance with a dense int ID, assigned in the order symbols are first seen. Handles can therefore be
+ * compared by identity and hashed from a cached value, and ID-indexed arrays can stand in for maps keyed by handle.
+ * <p>
+ * IDs are only meaningful within one process; the data files keep referring to classes and methods by name.
+ */
+public class SymbolTable {
+    private static final ClassReference.Handle NULL_CLASS = new ClassReference.Handle(null, -1);
+
+    private static final ConcurrentHashMap<String, ClassReference.Handle> classHandles = new ConcurrentHashMap<>();
+    // Handles by ID. Lookups read the arrays without locking: new handles are appended under the lock, growing a copy
+    // of the array when full, and the array is then published again through the volatile field.
+    private static final Object classIdLock = new Object();
+    private static volatile ClassReference.Handle[] classHandlesById = new ClassReference.Handle[1024];
+    private static volatile int classCount = 0;
+    private static final Object methodIdLock = new Object();
+    private static volatile MethodReference.Handle[] methodHandlesById = new MethodReference.Handle[4096];
+    private static volatile int methodCount = 0;
+
+    private SymbolTable() {
+    }
+
+    static ClassReference.Handle classHandle(String name) {
+        if (name == null) {
+            // Stands in for the missing superclass of java/lang/Object
+            return NULL_CLASS;
+        }
+        ClassReference.Handle handle = classHandles.get(name);
+        if (handle != null) {
+            return handle;
+        }
+        return classHandles.computeIfAbsent(name, n -> {
+            synchronized (classIdLock) {
+                ClassReference.Handle[] handles = classHandlesById;
+                if (classCount == handles.length) {
+                    handles = Arrays.copyOf(handles, handles.length * 2);
+                }
+                ClassReference.Handle newHandle = new ClassReference.Handle(n, classCount);
+                handles[classCount] = newHandle;
+                classHandlesById = handles;
+                classCount += 1;
+                return newHandle;
+            }
+        });
+    }
+
+    static MethodReference.Handle methodHandle(ClassReference.Handle classReference, String name, String desc) {
+        // Methods are interned per owning class, which keeps lookups free of key allocations. Known methods are found
+        // without locking; only a new method locks its owner.
+        Map<String, Map<String, MethodReference.Handle>> methods = classReference.getMethodHandles();
+        Map<String, MethodReference.Handle> methodsByDesc = methods.get(name);
+        if (methodsByDesc != null) {
+            MethodReference.Handle handle = methodsByDesc.get(desc);
+            if (handle != null) {
+                return handle;
+            }
+        }
+        synchronized (classReference) {
+            methodsByDesc = methods.computeIfAbsent(name, n -> new ConcurrentHashMap<>(4));
+            MethodReference.Handle handle = methodsByDesc.get(desc);
+            if (handle == null) {
+                synchronized (methodIdLock) {
+                    MethodReference.Handle[] handles = methodHandlesById;
+                    if (methodCount == handles.length) {
+                        handles = Arrays.copyOf(handles, handles.length * 2);
+                    }
+                    handle = new MethodReference.Handle(classReference, name, desc, methodCount);
+                    handles[methodCount] = handle;
+                    methodHandlesById = handles;
+                    methodCount += 1;
+                }
+                methodsByDesc.put(desc, handle);
+            }
+            return handle;
+        }
+    }
+
+    public static ClassReference.Handle getClassHandle(int id) {
+        return classHandlesById[id];
+    }
+
+    public static MethodReference.Handle getMethodHandle(int id) {
+        return methodHandlesById[id];
+    }
+
+    /**
+     * @return One more than the highest class ID handed out so far
+     */
+    public static int getClassCount() {
+        return classCount;
+    }
+
+    /**
+     * @return One more than the highest method ID handed out so far
+     */
+    public static int getMethodCount() {
+        return methodCount;
+    }
+}
@@ -4,12 +4,15 @@ import gadgetinspector.ImplementationFinder;
 import gadgetinspector.SerializableDecider;
 import gadgetinspector.data.MethodReference;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class JacksonImplementationFinder implements ImplementationFinder {
 
     private final SerializableDecider serializableDecider;
+    private final ConcurrentHashMap<MethodReference.Handle, Set<MethodReference.Handle>> implementationCache = new ConcurrentHashMap<>();
 
     public JacksonImplementationFinder(SerializableDecider serializableDecider) {
         this.serializableDecider = serializableDecider;
@@ -17,6 +20,14 @@ public class JacksonImplementationFinder implements ImplementationFinder {
 
     @Override
     public Set<MethodReference.Handle> getImplementations(MethodReference.Handle target) {
+        Set<MethodReference.Handle> allImpls = implementationCache.get(target);
+        if (allImpls == null) {
+            allImpls = implementationCache.computeIfAbsent(target, this::findImplementations);
+        }
+        return allImpls;
+    }
+
+    private Set<MethodReference.Handle> findImplementations(MethodReference.Handle target) {
         Set<MethodReference.Handle> allImpls = new HashSet<>();
 
         // For jackson search, we don't get to specify the class; it uses reflection to instantiate the
@@ -25,6 +36,6 @@ public class JacksonImplementationFinder implements ImplementationFinder {
             allImpls.add(target);
         }
 
-        return allImpls;
+        return Collections.unmodifiableSet(allImpls);
     }
 }
@@ -8,9 +8,10 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class JacksonSerializableDecider implements SerializableDecider {
-    private final Map<ClassReference.Handle, Boolean> cache = new HashMap<>();
+    private final Map<ClassReference.Handle, Boolean> cache = new ConcurrentHashMap<>();
     private final Map<ClassReference.Handle, Set<MethodReference.Handle>> methodsByClassMap;
 
     public JacksonSerializableDecider(Map<MethodReference.Handle, MethodReference> methodMap) {
@@ -2,31 +2,43 @@ package gadgetinspector.javaserial;
 
 import gadgetinspector.ImplementationFinder;
 import gadgetinspector.SerializableDecider;
+import gadgetinspector.data.MethodImplementations;
 import gadgetinspector.data.MethodReference;
 
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class SimpleImplementationFinder implements ImplementationFinder  {
 
     private final SerializableDecider serializableDecider;
-    private final Map<MethodReference.Handle, Set<MethodReference.Handle>> methodImplMap;
+    private final MethodImplementations methodImplementations;
+    // Implementations are only resolved for the targets the search actually reaches
+    private final ConcurrentHashMap<MethodReference.Handle, Set<MethodReference.Handle>> implementationCache = new ConcurrentHashMap<>();
 
-    public SimpleImplementationFinder(SerializableDecider serializableDecider, Map<MethodReference.Handle, Set<MethodReference.Handle>> methodImplMap) {
+    public SimpleImplementationFinder(SerializableDecider serializableDecider, MethodImplementations methodImplementations) {
         this.serializableDecider = serializableDecider;
-        this.methodImplMap = methodImplMap;
+        this.methodImplementations = methodImplementations;
     }
 
     @Override
     public Set<MethodReference.Handle> getImplementations(MethodReference.Handle target) {
+        Set<MethodReference.Handle> allImpls = implementationCache.get(target);
+        if (allImpls == null) {
+            allImpls = implementationCache.computeIfAbsent(target, this::findImplementations);
+        }
+        return allImpls;
+    }
+
+    private Set<MethodReference.Handle> findImplementations(MethodReference.Handle target) {
         Set<MethodReference.Handle> allImpls = new HashSet<>();
 
         // Assume that the target method is always available, even if not serializable; the target may just be a local
         // instance rather than something an attacker can control.
         allImpls.add(target);
 
-        Set<MethodReference.Handle> subClassImpls = methodImplMap.get(target);
+        Set<MethodReference.Handle> subClassImpls = methodImplementations.getOverridingMethods(target);
         if (subClassImpls != null) {
             for (MethodReference.Handle subClassImpl : subClassImpls) {
                 if (Boolean.TRUE.equals(serializableDecider.apply(subClassImpl.getClassReference()))) {
@@ -35,6 +47,6 @@ public class SimpleImplementationFinder implements ImplementationFinder  {
             }
         }
 
-        return allImpls;
+        return Collections.unmodifiableSet(allImpls);
     }
 }
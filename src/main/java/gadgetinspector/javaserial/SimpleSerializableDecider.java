@@ -4,11 +4,11 @@ import gadgetinspector.SerializableDecider;
 import gadgetinspector.data.ClassReference;
 import gadgetinspector.data.InheritanceMap;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class SimpleSerializableDecider implements SerializableDecider {
-    private final Map<ClassReference.Handle, Boolean> cache = new HashMap<>();
+    private final Map<ClassReference.Handle, Boolean> cache = new ConcurrentHashMap<>();
     private final InheritanceMap inheritanceMap;
 
     public SimpleSerializableDecider(InheritanceMap inheritanceMap) {
@@ -34,7 +34,7 @@ public class SimpleSerializableDecider implements SerializableDecider {
             return false;
         }
 
-        if (inheritanceMap.isSubclassOf(handle, new ClassReference.Handle("java/io/Serializable"))) {
+        if (inheritanceMap.isSubclassOf(handle, ClassReference.Handle.of("java/io/Serializable"))) {
             return true;
         }
 
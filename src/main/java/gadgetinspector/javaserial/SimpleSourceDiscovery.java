@@ -38,8 +38,8 @@ public class SimpleSourceDiscovery extends SourceDiscovery {
         // Using the proxy trick, anything extending serializable and invocation handler is tainted.
         for (ClassReference.Handle clazz : classMap.keySet()) {
             if (Boolean.TRUE.equals(serializableDecider.apply(clazz))
-                    && inheritanceMap.isSubclassOf(clazz, new ClassReference.Handle("java/lang/reflect/InvocationHandler"))) {
-                MethodReference.Handle method = new MethodReference.Handle(
+                    && inheritanceMap.isSubclassOf(clazz, ClassReference.Handle.of("java/lang/reflect/InvocationHandler"))) {
+                MethodReference.Handle method = MethodReference.Handle.of(
                         clazz, "invoke", "(Ljava/lang/Object;Ljava/lang/reflect/Method;[Ljava/lang/Object;)Ljava/lang/Object;");
 
                 addDiscoveredSource(new Source(method, 0));
@@ -65,7 +65,7 @@ public class SimpleSourceDiscovery extends SourceDiscovery {
         // https://github.com/frohoff/ysoserial/blob/master/src/main/java/ysoserial/payloads/Groovy1.java
         for (MethodReference.Handle method : methodMap.keySet()) {
             if (Boolean.TRUE.equals(serializableDecider.apply(method.getClassReference()))
-                    && inheritanceMap.isSubclassOf(method.getClassReference(), new ClassReference.Handle("groovy/lang/Closure"))
+                    && inheritanceMap.isSubclassOf(method.getClassReference(), ClassReference.Handle.of("groovy/lang/Closure"))
                     && (method.getName().equals("call") || method.getName().equals("doCall"))) {
 
                 addDiscoveredSource(new Source(method, 0));